@@ -17,6 +17,20 @@
 
 import {htmlTemplate} from './gr-zuul_html.js';
 
+// Number of revisions whose CRD responses are kept.
+const CRD_CACHE_SIZE = 20;
+// Age after which cached CRD responses are requested again, so that new
+// needed_by changes show up.
+const CRD_CACHE_MAX_AGE_MS = 5 * 60 * 1000;
+
+/**
+ * CRD responses by revision, shared by all instances in the session. Holds
+ * the promises rather than the responses, so that concurrent requests for
+ * the same revision share a single round trip. Map keeps insertion order,
+ * which is used as recency order.
+ */
+const crdCache = new Map();
+
 class GrZuul extends Polymer.Element {
   /** @returns {string} name of the component */
   static get is() { return 'gr-zuul'; }
@@ -47,14 +61,50 @@ class GrZuul extends Polymer.Element {
   }
 
   _onChangeChanged() {
+    const revision = this.change.current_revision || 'current';
+    const key = this.change.id + '/' + revision;
+    if (key === this._crdKey) {
+      // The change object was replaced, but still shows the same revision.
+      return this._crdPromise;
+    }
+    this._crdKey = key;
     this._crd_loaded = false;
     this.setHidden(true);
-    const url = '/changes/' + this.change.id + '/revisions/current/crd';
-    return this.plugin.restApi().send('GET', url).then(crd => {
+    this._crdPromise = this._getCrd(key, this.change.id, revision).then(crd => {
+      if (this._crdKey !== key) {
+        // Another change was selected while this one was loading.
+        return;
+      }
       this._crd = crd;
       this._crd_loaded = true;
       this.setHidden(!(crd.depends_on.length || crd.needed_by.length));
     });
+    return this._crdPromise;
+  }
+
+  _getCrd(key, changeId, revision) {
+    const now = Date.now();
+    const cached = crdCache.get(key);
+    crdCache.delete(key);
+    if (cached && now - cached.time < CRD_CACHE_MAX_AGE_MS) {
+      crdCache.set(key, cached);
+      return cached.promise;
+    }
+
+    const url = '/changes/' + changeId + '/revisions/' + revision +
+        '/crd?resolve';
+    const promise = this.plugin.restApi().send('GET', url);
+    crdCache.set(key, {promise, time: now});
+    promise.catch(() => {
+      // Do not keep failures, so that the next attempt asks again.
+      if (crdCache.has(key) && crdCache.get(key).promise === promise) {
+        crdCache.delete(key);
+      }
+    });
+    while (crdCache.size > CRD_CACHE_SIZE) {
+      crdCache.delete(crdCache.keys().next().value);
+    }
+    return promise;
   }
 
   setHidden(hidden) {
@@ -68,9 +118,29 @@ class GrZuul extends Polymer.Element {
     }
   }
 
-  _computeDependencyUrl(changeId) {
+  _computeDependencyUrl(changeId, changes) {
+    // Link to the change itself if the Change-Id resolves to exactly one
+    // change. Otherwise, e.g. if it is used on several branches, the search
+    // lists all of them.
+    const resolved = (changes || {})[changeId] || [];
+    if (resolved.length === 1) {
+      return Gerrit.Nav.getUrlForChangeById(
+          resolved[0]._number, resolved[0].project);
+    }
     return Gerrit.Nav.getUrlForSearchQuery(changeId);
   }
+
+  _computeDependencyStatus(changeId, changes) {
+    const resolved = (changes || {})[changeId] || [];
+    if (resolved.length > 1) {
+      return '(' + resolved.length + ' changes)';
+    }
+    if (resolved.length === 1 && resolved[0].status !== 'NEW') {
+      return '(' + resolved[0].status.charAt(0) +
+          resolved[0].status.slice(1).toLowerCase() + ')';
+    }
+    return '';
+  }
 }
 
 customElements.define(GrZuul.is, GrZuul);
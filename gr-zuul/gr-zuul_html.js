@@ -68,11 +68,14 @@ export const htmlTemplate = Polymer.html`
           <template is="dom-repeat" items="[[_crd.depends_on]]">
             <div class="changeContainer zuulDependencyContainer">
               <a
-                href$="[[_computeDependencyUrl(item)]]"
+                href$="[[_computeDependencyUrl(item, _crd.changes)]]"
                 title$="[[item]]"
               >
                 [[item]]
               </a>
+              <span class="status">
+                [[_computeDependencyStatus(item, _crd.changes)]]
+              </span>
               <template is="dom-if" if="[[_crd.cycle]]">
                 <span class="status dependencyCycleDetected">
                   (Dependency cycle detected)
@@ -88,11 +91,14 @@ export const htmlTemplate = Polymer.html`
           <template is="dom-repeat" items="[[_crd.needed_by]]">
             <div class="changeContainer zuulDependencyContainer">
               <a
-                href$="[[_computeDependencyUrl(item)]]"
+                href$="[[_computeDependencyUrl(item, _crd.changes)]]"
                 title$="[[item]]"
               >
                 [[item]]
               </a>
+              <span class="status">
+                [[_computeDependencyStatus(item, _crd.changes)]]
+              </span>
               <template is="dom-if" if="[[_crd.cycle]]">
                 <span class="status dependencyCycleDetected">
                   (Dependency cycle detected)
@@ -0,0 +1,113 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Reads the Depends-On footers of commits from a synthetic repository. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommitMessageFetcherBenchmark {
+  private static final DependsOnParser PARSER = new DependsOnParser(null);
+  private static final NegativeLookups NEGATIVE_LOOKUPS =
+      new NegativeLookups(
+          CacheBuilder.newBuilder().build(), CacheBuilder.newBuilder().build(), () -> null);
+  private static final ZuulMetrics METRICS = new ZuulMetrics(new DisabledMetricMaker());
+
+  @Param({"1000"})
+  int commitCount;
+
+  @Param({"256", "4096"})
+  int messageSize;
+
+  @Param({"0", "1", "5"})
+  int dependsOnPerCommit;
+
+  private SyntheticRepository repo;
+  private List<ObjectId> ids;
+  private CommitMessageFetcher warmFetcher;
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    repo = new SyntheticRepository(commitCount, messageSize, dependsOnPerCommit);
+    ids = repo.commits.stream().map(c -> c.id).collect(ImmutableList.toImmutableList());
+    warmFetcher = newFetcher();
+    warmFetcher.fetchAllDependsOn(SyntheticRepository.PROJECT, ids);
+  }
+
+  /** Reads a single commit and extracts its Depends-On footers, bypassing the cache. */
+  @Benchmark
+  public List<String> fetchDependsOnUncached() throws IOException {
+    return newFetcher().fetchDependsOn(SyntheticRepository.PROJECT, nextId());
+  }
+
+  /** Looks up the Depends-On footers of a single commit in a warm cache. */
+  @Benchmark
+  public List<String> fetchDependsOnCached() throws IOException {
+    return warmFetcher.fetchDependsOn(SyntheticRepository.PROJECT, nextId());
+  }
+
+  /** Looks up the Depends-On footers of all commits in a warm cache, as the index queue does. */
+  @Benchmark
+  public Map<ObjectId, ImmutableList<String>> fetchAllDependsOnCached() throws IOException {
+    return warmFetcher.fetchAllDependsOn(SyntheticRepository.PROJECT, ids);
+  }
+
+  /** Reads and parses all commits through a single repository with a cold cache. */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public Map<ObjectId, ImmutableList<String>> fetchAllDependsOnUncached() throws IOException {
+    return newFetcher().fetchAllDependsOn(SyntheticRepository.PROJECT, ids);
+  }
+
+  private ObjectId nextId() {
+    ObjectId id = ids.get(next);
+    next = (next + 1) % ids.size();
+    return id;
+  }
+
+  private CommitMessageFetcher newFetcher() {
+    return new CommitMessageFetcher(
+        repo.repoManager,
+        CacheBuilder.newBuilder()
+            .build(new CommitMessageFetcher.Loader(repo.repoManager, METRICS, PARSER)),
+        METRICS,
+        PARSER,
+        NEGATIVE_LOOKUPS);
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Extracts Depends-On footers from generated commit messages.
+ *
+ * <p>{@code regex} is the pattern the parser used to be based on, and serves as a baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DependsOnParserBenchmark {
+  private static final Pattern DEPENDS_ON =
+      Pattern.compile("[Dd]epends-[Oo]n:? (I[0-9a-f]{8,40})", Pattern.DOTALL);
+
+  private static final DependsOnParser PARSER = new DependsOnParser("https://review.example.org/");
+
+  @Param({"256", "4096", "65536"})
+  int messageSize;
+
+  @Param({"0", "1", "5"})
+  int dependsOnPerCommit;
+
+  private List<String> messages;
+  private List<byte[]> rawMessages;
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    SyntheticRepository repo = new SyntheticRepository(64, messageSize, dependsOnPerCommit);
+    messages = new ArrayList<>();
+    rawMessages = new ArrayList<>();
+    for (SyntheticRepository.Commit c : repo.commits) {
+      messages.add(c.message);
+      rawMessages.add(c.message.getBytes(UTF_8));
+    }
+  }
+
+  @Benchmark
+  public List<String> parseString() {
+    return PARSER.parse(messages.get(nextIndex()));
+  }
+
+  @Benchmark
+  public List<String> parseBytes() {
+    byte[] b = rawMessages.get(nextIndex());
+    return PARSER.parse(b, 0, b.length);
+  }
+
+  @Benchmark
+  public void regex(Blackhole bh) {
+    Matcher matcher = DEPENDS_ON.matcher(messages.get(nextIndex()));
+    while (matcher.find()) {
+      bh.consume(matcher.group(1));
+    }
+  }
+
+  private int nextIndex() {
+    int i = next;
+    next = (next + 1) % messages.size();
+    return i;
+  }
+}
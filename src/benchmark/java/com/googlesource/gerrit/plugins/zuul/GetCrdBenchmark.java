@@ -0,0 +1,211 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.PatchSet;
+import com.google.gerrit.extensions.client.ListChangesOption;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.change.RevisionResource;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Computes the CRD info of changes of a synthetic repository end to end.
+ *
+ * <p>The needed by changes are looked up in a dependency index built from the generated Depends-On
+ * footers. Their visibility is checked against a stub in place of {@code QueryChanges} that returns
+ * all requested changes, so the results exclude the cost of the change index and of permission
+ * checks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GetCrdBenchmark {
+  private static final DependsOnParser PARSER = new DependsOnParser(null);
+  private static final NegativeLookups NEGATIVE_LOOKUPS =
+      new NegativeLookups(
+          CacheBuilder.newBuilder().build(), CacheBuilder.newBuilder().build(), () -> null);
+  private static final ZuulMetrics METRICS = new ZuulMetrics(new DisabledMetricMaker());
+
+  private static final Splitter OR = Splitter.on(" OR ");
+
+  @Param({"1000"})
+  int commitCount;
+
+  @Param({"1024"})
+  int messageSize;
+
+  @Param({"0", "1", "5"})
+  int dependsOnPerCommit;
+
+  @Param({"1", "100"})
+  int batchSize;
+
+  @Param({"0", "4"})
+  int threads;
+
+  private SyntheticRepository repo;
+  private VisibleChanges visibleChanges;
+  private DependencyIndex dependencyIndex;
+  private ZuulConfig cfg;
+  private ExecutorService executor;
+  private GetCrd warmGetCrd;
+  private List<RevisionResource> rsrcs;
+  private int next;
+
+  @Setup
+  public void setUp() throws Exception {
+    repo = new SyntheticRepository(commitCount, messageSize, dependsOnPerCommit);
+
+    dependencyIndex = new DependencyIndex();
+    Map<Integer, ChangeInfo> infos = new HashMap<>();
+    rsrcs = new ArrayList<>();
+    for (SyntheticRepository.Commit c : repo.commits) {
+      dependencyIndex.update(c.changeId, c.key, c.dependsOn);
+
+      ChangeInfo info = new ChangeInfo();
+      info._number = c.changeId.get();
+      info.changeId = c.key.get();
+      infos.put(info._number, info);
+
+      Change change =
+          new Change(
+              c.key,
+              c.changeId,
+              Account.id(1000000),
+              BranchNameKey.create(SyntheticRepository.PROJECT, "master"),
+              new Timestamp(0));
+      PatchSet ps =
+          PatchSet.builder()
+              .id(PatchSet.id(c.changeId, 1))
+              .commitId(c.id)
+              .uploader(change.getOwner())
+              .createdOn(change.getCreatedOn())
+              .build();
+      rsrcs.add(
+          new RevisionResource(null, ps) {
+            @Override
+            public Change getChange() {
+              return change;
+            }
+          });
+    }
+
+    visibleChanges =
+        new VisibleChanges(null) {
+          @Override
+          public List<ChangeInfo> query(String q, ListChangesOption... options) {
+            List<ChangeInfo> result = new ArrayList<>();
+            for (String term : OR.split(q)) {
+              result.add(infos.get(Integer.parseInt(term.substring("change:".length()))));
+            }
+            return result;
+          }
+        };
+
+    PluginConfigFactory cfgFactory = mock(PluginConfigFactory.class);
+    when(cfgFactory.getFromGerritConfig("zuul"))
+        .thenReturn(PluginConfig.createFromGerritConfig("zuul", new Config()));
+    cfg = new ZuulConfig(cfgFactory, "zuul");
+
+    executor =
+        threads > 0
+            ? Executors.newFixedThreadPool(threads)
+            : MoreExecutors.newDirectExecutorService();
+
+    warmGetCrd = newGetCrd();
+    warmGetCrd.apply(rsrcs);
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /** Computes the CRD info of a batch of revisions whose Depends-On footers are cached. */
+  @Benchmark
+  public List<CrdInfo> applyCached() throws Exception {
+    return warmGetCrd.apply(nextBatch());
+  }
+
+  /** Computes the CRD info of a batch of revisions, reading all commits from the repository. */
+  @Benchmark
+  public List<CrdInfo> applyUncached() throws Exception {
+    return newGetCrd().apply(nextBatch());
+  }
+
+  private List<RevisionResource> nextBatch() {
+    if (next + batchSize > rsrcs.size()) {
+      next = 0;
+    }
+    List<RevisionResource> batch = rsrcs.subList(next, next + batchSize);
+    next += batchSize;
+    return batch;
+  }
+
+  private GetCrd newGetCrd() {
+    CommitMessageFetcher fetcher =
+        new CommitMessageFetcher(
+            repo.repoManager,
+            CacheBuilder.newBuilder()
+                .build(new CommitMessageFetcher.Loader(repo.repoManager, METRICS, PARSER)),
+            METRICS,
+            PARSER,
+            NEGATIVE_LOOKUPS);
+    return new GetCrd(
+        visibleChanges,
+        fetcher,
+        dependencyIndex,
+        cfg,
+        executor,
+        METRICS,
+        new InFlightCrdLookups(),
+        NEGATIVE_LOOKUPS);
+  }
+}
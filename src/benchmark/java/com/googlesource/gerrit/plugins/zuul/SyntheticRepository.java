@@ -0,0 +1,150 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.testing.InMemoryRepositoryManager;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * An in-memory repository with generated commits, for benchmarks.
+ *
+ * <p>Each commit carries a Change-Id footer and {@code dependsOnPerCommit} Depends-On footers to
+ * the Change-Ids of randomly picked other commits. The body of each message is filler text of
+ * {@code messageSize} bytes. Commits and messages are generated from a fixed seed, so that runs are
+ * comparable.
+ */
+class SyntheticRepository {
+  static final Project.NameKey PROJECT = Project.nameKey("benchmark");
+
+  private static final String[] WORDS = {
+    "lorem",
+    "ipsum",
+    "dolor",
+    "sit",
+    "amet",
+    "consectetur",
+    "adipiscing",
+    "elit",
+    "sed",
+    "do",
+    "eiusmod",
+    "tempor",
+    "incididunt",
+    "ut",
+    "labore",
+    "et",
+    "dolore",
+    "magna",
+    "aliqua"
+  };
+
+  /** A generated commit. */
+  static class Commit {
+    final ObjectId id;
+    final Change.Id changeId;
+    final Change.Key key;
+    final String message;
+    final ImmutableList<String> dependsOn;
+
+    Commit(
+        ObjectId id,
+        Change.Id changeId,
+        Change.Key key,
+        String message,
+        ImmutableList<String> dependsOn) {
+      this.id = id;
+      this.changeId = changeId;
+      this.key = key;
+      this.message = message;
+      this.dependsOn = dependsOn;
+    }
+  }
+
+  final InMemoryRepositoryManager repoManager;
+  final ImmutableList<Commit> commits;
+
+  SyntheticRepository(int commitCount, int messageSize, int dependsOnPerCommit) throws IOException {
+    Random random = new Random(commitCount * 31L + messageSize * 17L + dependsOnPerCommit);
+    List<Change.Key> keys = new ArrayList<>(commitCount);
+    for (int i = 0; i < commitCount; i++) {
+      keys.add(Change.key(String.format("I%08x%032x", i, random.nextLong())));
+    }
+
+    repoManager = new InMemoryRepositoryManager();
+    ImmutableList.Builder<Commit> commits = ImmutableList.builder();
+    try (Repository repo = repoManager.createRepository(PROJECT);
+        ObjectInserter ins = repo.newObjectInserter()) {
+      ObjectId tree = ins.insert(Constants.OBJ_TREE, new byte[0]);
+      PersonIdent ident = new PersonIdent("Author", "author@example.org", 0, 0);
+      for (int i = 0; i < commitCount; i++) {
+        List<String> dependsOn = new ArrayList<>(dependsOnPerCommit);
+        for (int j = 0; j < dependsOnPerCommit && commitCount > 1; j++) {
+          int other = random.nextInt(commitCount - 1);
+          dependsOn.add(keys.get(other < i ? other : other + 1).get());
+        }
+        String message = message(random, i, messageSize, keys.get(i), dependsOn);
+
+        CommitBuilder cb = new CommitBuilder();
+        cb.setTreeId(tree);
+        cb.setAuthor(ident);
+        cb.setCommitter(ident);
+        cb.setMessage(message);
+        ObjectId id = ins.insert(cb);
+        commits.add(
+            new Commit(
+                id, Change.id(i + 1), keys.get(i), message, ImmutableList.copyOf(dependsOn)));
+      }
+      ins.flush();
+    }
+    this.commits = commits.build();
+  }
+
+  private static String message(
+      Random random, int i, int messageSize, Change.Key key, List<String> dependsOn) {
+    StringBuilder msg = new StringBuilder("Synthetic change ").append(i).append("\n\n");
+    int line = 0;
+    for (int n = 0; n < messageSize; ) {
+      String word = WORDS[random.nextInt(WORDS.length)];
+      if (line + word.length() >= 72) {
+        msg.append('\n');
+        line = 0;
+      } else if (line > 0) {
+        msg.append(' ');
+        line++;
+      }
+      msg.append(word);
+      line += word.length();
+      n += word.length() + 1;
+    }
+    msg.append("\n\n");
+    for (String other : dependsOn) {
+      msg.append("Depends-On: ").append(other).append('\n');
+    }
+    msg.append("Change-Id: ").append(key.get()).append('\n');
+    return msg.toString();
+  }
+}
@@ -0,0 +1,223 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.gerrit.acceptance.GitUtil;
+import com.google.gerrit.acceptance.LightweightPluginDaemonTest;
+import com.google.gerrit.acceptance.RestResponse;
+import com.google.gerrit.acceptance.RestSession;
+import com.google.gerrit.acceptance.TestPlugin;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.junit.Test;
+
+/**
+ * Drives concurrent requests to the crd endpoint of an in-process server.
+ *
+ * <p>Each test pushes changes whose Depends-On footers form one dependency topology, waits until
+ * the dependency index caught up with them and then requests the CRD info of random changes from
+ * several threads. The throughput and the latency percentiles are printed, so that runs can be
+ * compared between versions. Unlike the JMH benchmarks, the requests go through the REST layer, the
+ * change index and the permission checks.
+ *
+ * <p>The size of the load is set with system properties:
+ *
+ * <ul>
+ *   <li>{@code zuul.loadtest.changes}: number of changes per topology, default 2000.
+ *   <li>{@code zuul.loadtest.threads}: number of concurrent clients, default 8.
+ *   <li>{@code zuul.loadtest.requests}: number of requests per topology, default 5000.
+ *   <li>{@code zuul.loadtest.hubSize}: number of changes that depend on one hub, default 100.
+ *   <li>{@code zuul.loadtest.maxP99Ms}: fail if the 99th percentile latency exceeds this many
+ *       milliseconds, unset by default.
+ * </ul>
+ */
+@TestPlugin(
+    name = "zuul",
+    sysModule = "com.googlesource.gerrit.plugins.zuul.Module",
+    httpModule = "com.googlesource.gerrit.plugins.zuul.HttpModule")
+public class GetCrdLoadTest extends LightweightPluginDaemonTest {
+  private static final int CHANGES = Integer.getInteger("zuul.loadtest.changes", 2000);
+  private static final int THREADS = Integer.getInteger("zuul.loadtest.threads", 8);
+  private static final int REQUESTS = Integer.getInteger("zuul.loadtest.requests", 5000);
+  private static final int HUB_SIZE = Integer.getInteger("zuul.loadtest.hubSize", 100);
+  private static final long MAX_P99_MS = Long.getLong("zuul.loadtest.maxP99Ms", 0);
+  private static final int CYCLE_SIZE = 3;
+  private static final int PUSH_BATCH_SIZE = 500;
+  private static final long INDEX_TIMEOUT_MS = MINUTES.toMillis(5);
+
+  private enum Topology {
+    /** Every change depends on the one before it. */
+    CHAIN,
+    /** Groups of changes depend on the first change of their group. */
+    FAN_IN,
+    /** Groups of changes depend on each other in a ring. */
+    CYCLES
+  }
+
+  @Test
+  public void chain() throws Exception {
+    run(Topology.CHAIN);
+  }
+
+  @Test
+  public void fanInHubs() throws Exception {
+    run(Topology.FAN_IN);
+  }
+
+  @Test
+  public void cycles() throws Exception {
+    run(Topology.CYCLES);
+  }
+
+  private void run(Topology topology) throws Exception {
+    Random random = new Random(topology.ordinal());
+    List<String> changeIds = new ArrayList<>(CHANGES);
+    for (int i = 0; i < CHANGES; i++) {
+      changeIds.add(String.format("I%08x%032x", i, random.nextLong()));
+    }
+    List<String> dependsOn = new ArrayList<>(CHANGES);
+    int dependent = 0;
+    for (int i = 0; i < CHANGES; i++) {
+      String target = dependsOn(topology, changeIds, i);
+      dependsOn.add(target);
+      if (target != null) {
+        dependent++;
+      }
+    }
+
+    // The index is shared with the changes of earlier tests. The site starts out empty, so the
+    // plugin indexes all of its changes and no reindex is needed.
+    DependencyIndex index = plugin.getSysInjector().getInstance(DependencyIndex.class);
+    index.setComplete();
+    int expected = index.size() + dependent;
+    push(changeIds, dependsOn);
+    awaitIndexed(index, expected);
+    measure(topology, changeIds, random);
+  }
+
+  private static String dependsOn(Topology topology, List<String> changeIds, int i) {
+    switch (topology) {
+      case CHAIN:
+        return i == 0 ? null : changeIds.get(i - 1);
+      case FAN_IN:
+        int hub = i - i % HUB_SIZE;
+        return i == hub ? null : changeIds.get(hub);
+      case CYCLES:
+        int first = i - i % CYCLE_SIZE;
+        int next = i + 1 < first + CYCLE_SIZE && i + 1 < changeIds.size() ? i + 1 : first;
+        return next == i ? null : changeIds.get(next);
+    }
+    throw new IllegalArgumentException(topology.name());
+  }
+
+  private void push(List<String> changeIds, List<String> dependsOn) throws Exception {
+    for (int i = 0; i < changeIds.size(); i++) {
+      StringBuilder message = new StringBuilder().append("Load test change ").append(i);
+      message.append("\n\n");
+      if (dependsOn.get(i) != null) {
+        message.append("Depends-On: ").append(dependsOn.get(i)).append('\n');
+      }
+      message.append("Change-Id: ").append(changeIds.get(i)).append('\n');
+      testRepo
+          .branch("HEAD")
+          .commit()
+          .message(message.toString())
+          .add("file-" + i, Integer.toString(i))
+          .create();
+      if ((i + 1) % PUSH_BATCH_SIZE == 0 || i + 1 == changeIds.size()) {
+        PushResult result = GitUtil.pushHead(testRepo, "refs/for/master");
+        RemoteRefUpdate update = result.getRemoteUpdate("refs/for/master");
+        assertWithMessage(result.getMessages())
+            .that(update.getStatus())
+            .isEqualTo(RemoteRefUpdate.Status.OK);
+      }
+    }
+  }
+
+  private static void awaitIndexed(DependencyIndex index, int expected) throws Exception {
+    long deadline = System.currentTimeMillis() + INDEX_TIMEOUT_MS;
+    while (index.size() < expected) {
+      assertWithMessage("indexed Depends-On footers")
+          .that(System.currentTimeMillis())
+          .isLessThan(deadline);
+      Thread.sleep(100);
+    }
+  }
+
+  private void measure(Topology topology, List<String> changeIds, Random random) throws Exception {
+    String[] urls = new String[REQUESTS];
+    for (int i = 0; i < REQUESTS; i++) {
+      String changeId = changeIds.get(random.nextInt(changeIds.size()));
+      urls[i] =
+          String.format("/changes/%s~master~%s/revisions/current/zuul~crd", project, changeId);
+    }
+
+    long[] latencies = new long[REQUESTS];
+    AtomicInteger next = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    long start = System.nanoTime();
+    try {
+      List<Future<?>> clients = new ArrayList<>(THREADS);
+      for (int t = 0; t < THREADS; t++) {
+        clients.add(
+            executor.submit(
+                () -> {
+                  RestSession session = new RestSession(server, admin);
+                  for (int i = next.getAndIncrement(); i < REQUESTS; i = next.getAndIncrement()) {
+                    long requestStart = System.nanoTime();
+                    RestResponse response = session.get(urls[i]);
+                    latencies[i] = System.nanoTime() - requestStart;
+                    response.assertOK();
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> client : clients) {
+        client.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    long elapsed = System.nanoTime() - start;
+
+    Arrays.sort(latencies);
+    double throughput = REQUESTS * 1e9 / elapsed;
+    long p50 = NANOSECONDS.toMillis(percentile(latencies, 50));
+    long p99 = NANOSECONDS.toMillis(percentile(latencies, 99));
+    System.out.printf(
+        "%s: %d changes, %d requests, %d threads: %.1f requests/s, p50 %d ms, p99 %d ms%n",
+        topology, changeIds.size(), REQUESTS, THREADS, throughput, p50, p99);
+    if (MAX_P99_MS > 0) {
+      assertWithMessage("p99 latency of %s in ms", topology).that(p99).isAtMost(MAX_P99_MS);
+    }
+  }
+
+  private static long percentile(long[] sorted, int percentile) {
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+}
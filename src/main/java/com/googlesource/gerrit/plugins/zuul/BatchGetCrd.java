@@ -0,0 +1,101 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.common.base.Strings;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.IdString;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
+import com.google.gerrit.extensions.restapi.Response;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.extensions.restapi.RestModifyView;
+import com.google.gerrit.extensions.restapi.TopLevelResource;
+import com.google.gerrit.extensions.restapi.UnprocessableEntityException;
+import com.google.gerrit.server.change.ChangeResource;
+import com.google.gerrit.server.change.RevisionResource;
+import com.google.gerrit.server.config.ConfigResource;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.restapi.change.ChangesCollection;
+import com.google.gerrit.server.restapi.change.Revisions;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Gets the CRD info of several revisions in one request. */
+@Singleton
+public class BatchGetCrd implements RestModifyView<ConfigResource, BatchGetCrd.Input> {
+  public static class Input {
+    public List<RevisionInput> revisions;
+    public boolean resolve;
+  }
+
+  public static class RevisionInput {
+    public String change;
+    public String revision;
+  }
+
+  private final ChangesCollection changes;
+  private final Revisions revisions;
+  private final Provider<GetCrd> getCrd;
+  private final ZuulConfig cfg;
+
+  @Inject
+  BatchGetCrd(
+      ChangesCollection changes, Revisions revisions, Provider<GetCrd> getCrd, ZuulConfig cfg) {
+    this.changes = changes;
+    this.revisions = revisions;
+    this.getCrd = getCrd;
+    this.cfg = cfg;
+  }
+
+  @Override
+  public Response<List<CrdInfo>> apply(ConfigResource rsrc, Input input)
+      throws RestApiException, IOException, PermissionBackendException {
+    if (input == null || input.revisions == null || input.revisions.isEmpty()) {
+      throw new BadRequestException("revisions are required");
+    }
+    if (input.revisions.size() > cfg.getMaxBatchSize()) {
+      throw new BadRequestException(
+          "at most " + cfg.getMaxBatchSize() + " revisions can be requested at once");
+    }
+
+    List<RevisionResource> rsrcs = new ArrayList<>(input.revisions.size());
+    for (RevisionInput in : input.revisions) {
+      rsrcs.add(parse(in));
+    }
+    GetCrd view = getCrd.get();
+    view.setResolve(input.resolve);
+    return Response.ok(view.apply(rsrcs));
+  }
+
+  private RevisionResource parse(RevisionInput in)
+      throws RestApiException, IOException, PermissionBackendException {
+    if (Strings.isNullOrEmpty(in.change)) {
+      throw new BadRequestException("change is required");
+    }
+    String revision = Strings.isNullOrEmpty(in.revision) ? "current" : in.revision;
+    try {
+      ChangeResource change =
+          changes.parse(TopLevelResource.INSTANCE, IdString.fromDecoded(in.change));
+      return revisions.parse(change, IdString.fromDecoded(revision));
+    } catch (ResourceNotFoundException e) {
+      throw new UnprocessableEntityException(
+          String.format("revision %s of change %s not found", revision, in.change));
+    }
+  }
+}
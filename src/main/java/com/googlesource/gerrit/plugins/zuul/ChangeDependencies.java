@@ -0,0 +1,192 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.PatchSet;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.InternalChangeQuery;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Memoizes the Depends-On footers of the changes a Change-Id resolves to.
+ *
+ * <p>Transitive dependency graphs of neighbouring changes largely overlap. Caching the edges of
+ * each node lets a graph reuse the parts that earlier requests already resolved. The cache is not
+ * aware of visibility; callers need to filter the resolved changes for the calling user.
+ *
+ * <p>An entry is invalidated whenever a change with a matching Change-Id or number is reindexed,
+ * which happens on every new patch set. Full Change-Ids and numbers are invalidated by key; only
+ * the few abbreviated Change-Ids are matched by prefix, so that bursts of reindexed changes do not
+ * scan the whole cache.
+ */
+@Singleton
+public class ChangeDependencies {
+  static final String CACHE_NAME = "change_dependencies";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, String.class, new TypeLiteral<ImmutableList<Node>>() {})
+            .maximumWeight(10000)
+            .loader(Loader.class);
+      }
+    };
+  }
+
+  /** A change and the references of the Depends-On footers of its current patch set. */
+  public static class Node {
+    public final Change.Id id;
+    public final Change.Key key;
+    public final Project.NameKey project;
+    public final ObjectId revision;
+    public final ImmutableList<String> dependsOn;
+
+    Node(
+        Change.Id id,
+        Change.Key key,
+        Project.NameKey project,
+        ObjectId revision,
+        Collection<String> dependsOn) {
+      this.id = id;
+      this.key = key;
+      this.project = project;
+      this.revision = revision;
+      this.dependsOn = ImmutableList.copyOf(dependsOn);
+    }
+  }
+
+  private final LoadingCache<String, ImmutableList<Node>> cache;
+  /** Abbreviated Change-Ids that may have been loaded into the cache. */
+  private final Set<String> abbreviated = ConcurrentHashMap.newKeySet();
+
+  @Inject
+  ChangeDependencies(@Named(CACHE_NAME) LoadingCache<String, ImmutableList<Node>> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Resolves Change-Ids and change numbers, as returned by {@link DependsOnParser}, to the changes
+   * they refer to. A Change-Id resolves to several changes if it is used on several branches.
+   */
+  public ImmutableMap<String, ImmutableList<Node>> getAll(Collection<String> changeIds)
+      throws IOException {
+    ImmutableMap<String, ImmutableList<Node>> nodes;
+    try {
+      nodes = cache.getAll(changeIds);
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e);
+    }
+    // Recorded once the entries are cached, so that invalidate() never forgets a loaded entry.
+    for (String ref : changeIds) {
+      if (DependsOnParser.isAbbreviatedChangeId(ref)) {
+        abbreviated.add(ref);
+      }
+    }
+    return nodes;
+  }
+
+  /**
+   * Drops the entries that may resolve to the change, including abbreviated Change-Ids and its
+   * number.
+   */
+  public void invalidate(Change.Id id, Change.Key key) {
+    String changeId = key.get();
+    cache.invalidate(id.toString());
+    cache.invalidate(changeId);
+    abbreviated.removeIf(
+        ref -> {
+          if (changeId.startsWith(ref)) {
+            cache.invalidate(ref);
+            return true;
+          }
+          // Forget abbreviations that have been evicted in the meantime.
+          return !cache.asMap().containsKey(ref);
+        });
+  }
+
+  static class Loader extends CacheLoader<String, ImmutableList<Node>> {
+    private final Provider<InternalChangeQuery> queryProvider;
+    private final CommitMessageFetcher commitMessageFetcher;
+    private final NegativeLookups negativeLookups;
+
+    @Inject
+    Loader(
+        Provider<InternalChangeQuery> queryProvider,
+        CommitMessageFetcher commitMessageFetcher,
+        NegativeLookups negativeLookups) {
+      this.queryProvider = queryProvider;
+      this.commitMessageFetcher = commitMessageFetcher;
+      this.negativeLookups = negativeLookups;
+    }
+
+    @Override
+    public ImmutableList<Node> load(String ref) throws IOException {
+      if (negativeLookups.isMissingChange(ref)) {
+        return ImmutableList.of();
+      }
+      ImmutableList.Builder<Node> nodes = ImmutableList.builder();
+      List<ChangeData> changes =
+          DependsOnParser.isChangeNumber(ref)
+              ? queryProvider.get().byLegacyChangeId(Change.id(Integer.parseInt(ref)))
+              : queryProvider.get().byKeyPrefix(ref);
+      if (changes.isEmpty()) {
+        negativeLookups.putMissingChange(ref);
+      }
+      for (ChangeData cd : changes) {
+        PatchSet ps = cd.currentPatchSet();
+        if (ps == null) {
+          continue;
+        }
+        Change change = cd.change();
+        ImmutableList<String> dependsOn;
+        try {
+          dependsOn = commitMessageFetcher.fetchDependsOn(change.getProject(), ps.commitId());
+        } catch (RepositoryNotFoundException e) {
+          // The change is still indexed, but its project has been deleted.
+          continue;
+        }
+        nodes.add(
+            new Node(
+                change.getId(), change.getKey(), change.getProject(), ps.commitId(), dependsOn));
+      }
+      return nodes.build();
+    }
+  }
+}
@@ -0,0 +1,274 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import java.util.Arrays;
+
+/**
+ * Interns Change-Ids and other Depends-On targets into dense integer ids.
+ *
+ * <p>Full Change-Ids, an {@code I} followed by 40 lower case hex digits, are held as 160 bit
+ * numbers in primitive arrays. Other strings, such as abbreviated Change-Ids and change numbers,
+ * are kept as they are. Ids are reference counted and reused once they are no longer referenced.
+ *
+ * <p>The ids are found through an open addressing hash table of ids with linear probing. Not
+ * thread-safe.
+ */
+final class ChangeIdTable {
+  private static final int CHANGE_ID_LENGTH = 41;
+  private static final int INITIAL_CAPACITY = 16;
+
+  /** The first 64 bits of each interned Change-Id. */
+  private long[] high = new long[INITIAL_CAPACITY];
+  /** The next 64 bits of each interned Change-Id. */
+  private long[] low = new long[INITIAL_CAPACITY];
+  /** The last 32 bits of each interned Change-Id. */
+  private int[] tail = new int[INITIAL_CAPACITY];
+  /** Strings that are not full Change-Ids, {@code null} for full Change-Ids and unused ids. */
+  private String[] others = new String[INITIAL_CAPACITY];
+
+  private int[] refs = new int[INITIAL_CAPACITY];
+  /** Hash table of {@code id + 1}, 0 marks an empty slot. */
+  private int[] slots = new int[2 * INITIAL_CAPACITY];
+
+  private int[] free = new int[INITIAL_CAPACITY];
+  private int freeCount;
+  private int nextId;
+  private int size;
+  private int otherCount;
+  private long otherChars;
+
+  // Scratch space of the last parsed string, to avoid allocations on lookups.
+  private boolean parsed;
+  private long parsedHigh;
+  private long parsedLow;
+  private int parsedTail;
+
+  /** Returns the id of {@code value}, or -1 if it is not interned. */
+  int get(String value) {
+    int slot = find(value);
+    return slots[slot] - 1;
+  }
+
+  /** Interns {@code value} if needed and adds a reference to its id. */
+  int acquire(String value) {
+    int slot = find(value);
+    int id = slots[slot] - 1;
+    if (id < 0) {
+      id = allocate();
+      if (parsed) {
+        high[id] = parsedHigh;
+        low[id] = parsedLow;
+        tail[id] = parsedTail;
+      } else {
+        others[id] = value;
+        otherCount++;
+        otherChars += value.length();
+      }
+      slots[slot] = id + 1;
+      size++;
+      if (2 * size > slots.length) {
+        rehash(2 * slots.length);
+      }
+    }
+    refs[id]++;
+    return id;
+  }
+
+  /** Removes a reference to {@code id}, releasing the id with its last reference. */
+  void release(int id) {
+    if (--refs[id] > 0) {
+      return;
+    }
+    remove(id);
+    if (others[id] != null) {
+      otherCount--;
+      otherChars -= others[id].length();
+      others[id] = null;
+    }
+    size--;
+    if (freeCount == free.length) {
+      free = Arrays.copyOf(free, 2 * free.length);
+    }
+    free[freeCount++] = id;
+  }
+
+  /** Returns the string that was interned as {@code id}. */
+  String toString(int id) {
+    if (others[id] != null) {
+      return others[id];
+    }
+    char[] chars = new char[CHANGE_ID_LENGTH];
+    chars[0] = 'I';
+    appendHex(chars, 1, high[id], 16);
+    appendHex(chars, 17, low[id], 16);
+    appendHex(chars, 33, tail[id] & 0xffffffffL, 8);
+    return new String(chars);
+  }
+
+  /** Returns one more than the largest id handed out so far. */
+  int capacity() {
+    return nextId;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Returns an estimate of the heap used by the table, in bytes. */
+  long memoryBytes() {
+    return MemoryEstimate.array(high.length, Long.BYTES)
+        + MemoryEstimate.array(low.length, Long.BYTES)
+        + MemoryEstimate.array(tail.length, Integer.BYTES)
+        + MemoryEstimate.array(others.length, MemoryEstimate.REFERENCE)
+        + MemoryEstimate.array(refs.length, Integer.BYTES)
+        + MemoryEstimate.array(slots.length, Integer.BYTES)
+        + MemoryEstimate.array(free.length, Integer.BYTES)
+        + otherCount * MemoryEstimate.STRING
+        + otherChars;
+  }
+
+  /**
+   * Parses {@code value} into the scratch fields and returns the slot that holds its id, or the
+   * empty slot where it would be inserted.
+   */
+  private int find(String value) {
+    parsed = parse(value);
+    int mask = slots.length - 1;
+    int slot = (parsed ? hash(parsedHigh, parsedLow, parsedTail) : hash(value)) & mask;
+    while (slots[slot] != 0) {
+      int id = slots[slot] - 1;
+      if (parsed
+          ? others[id] == null
+              && high[id] == parsedHigh
+              && low[id] == parsedLow
+              && tail[id] == parsedTail
+          : value.equals(others[id])) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /** Removes {@code id} from the hash table, moving later entries of its probe sequence back. */
+  private void remove(int id) {
+    int mask = slots.length - 1;
+    int slot = hash(id) & mask;
+    while (slots[slot] != id + 1) {
+      slot = (slot + 1) & mask;
+    }
+    for (int next = (slot + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+      int home = hash(slots[next] - 1) & mask;
+      // The entry can fill the gap unless its home slot lies cyclically in (slot, next].
+      boolean between = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+      if (!between) {
+        slots[slot] = slots[next];
+        slot = next;
+      }
+    }
+    slots[slot] = 0;
+  }
+
+  private int allocate() {
+    if (freeCount > 0) {
+      return free[--freeCount];
+    }
+    if (nextId == refs.length) {
+      int capacity = 2 * refs.length;
+      high = Arrays.copyOf(high, capacity);
+      low = Arrays.copyOf(low, capacity);
+      tail = Arrays.copyOf(tail, capacity);
+      others = Arrays.copyOf(others, capacity);
+      refs = Arrays.copyOf(refs, capacity);
+    }
+    return nextId++;
+  }
+
+  private void rehash(int capacity) {
+    int[] old = slots;
+    slots = new int[capacity];
+    int mask = capacity - 1;
+    for (int entry : old) {
+      if (entry != 0) {
+        int slot = hash(entry - 1) & mask;
+        while (slots[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        slots[slot] = entry;
+      }
+    }
+  }
+
+  private boolean parse(String value) {
+    if (value.length() != CHANGE_ID_LENGTH || value.charAt(0) != 'I') {
+      return false;
+    }
+    long h = 0;
+    long l = 0;
+    long t = 0;
+    for (int i = 1; i < CHANGE_ID_LENGTH; i++) {
+      int digit = hexDigit(value.charAt(i));
+      if (digit < 0) {
+        return false;
+      }
+      if (i <= 16) {
+        h = h << 4 | digit;
+      } else if (i <= 32) {
+        l = l << 4 | digit;
+      } else {
+        t = t << 4 | digit;
+      }
+    }
+    parsedHigh = h;
+    parsedLow = l;
+    parsedTail = (int) t;
+    return true;
+  }
+
+  private static int hexDigit(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    }
+    if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    }
+    return -1;
+  }
+
+  private static void appendHex(char[] chars, int offset, long value, int digits) {
+    for (int i = digits - 1; i >= 0; i--) {
+      chars[offset + i] = Character.forDigit((int) (value & 0xf), 16);
+      value >>>= 4;
+    }
+  }
+
+  private int hash(int id) {
+    return others[id] != null ? hash(others[id]) : hash(high[id], low[id], tail[id]);
+  }
+
+  private static int hash(long high, long low, int tail) {
+    return mix(high * 31 + low * 17 + tail);
+  }
+
+  private static int hash(String value) {
+    return mix(value.hashCode());
+  }
+
+  private static int mix(long x) {
+    int h = (int) (x ^ (x >>> 32)) * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -14,30 +14,277 @@
 
 package com.googlesource.gerrit.plugins.zuul;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.cache.serialize.CacheSerializer;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevWalk;
 
+/**
+ * Reads commit messages and their Depends-On footers.
+ *
+ * <p>Depends-On footers are read through the {@code depends_on} cache. They are determined by the
+ * commit SHA-1 alone, so cached entries never need to be invalidated. The cache is kept in memory
+ * only unless {@code cache.zuul.depends_on.diskLimit} is set to a positive value.
+ */
 public class CommitMessageFetcher {
+  static final String CACHE_NAME = "depends_on";
+
+  // Commit objects are small; anything bigger is not worth scanning for footers.
+  private static final int MAX_COMMIT_SIZE = 4 << 20;
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        persist(CACHE_NAME, Key.class, new TypeLiteral<ImmutableList<String>>() {})
+            .version(2)
+            .keySerializer(Key.Serializer.INSTANCE)
+            .valueSerializer(DependsOnSerializer.INSTANCE)
+            .maximumWeight(4 << 20)
+            .diskLimit(0)
+            .weigher(DependsOnWeigher.class)
+            .loader(Loader.class);
+      }
+    };
+  }
+
   private final GitRepositoryManager repoManager;
+  private final LoadingCache<Key, ImmutableList<String>> cache;
+  private final ZuulMetrics metrics;
+  private final DependsOnParser parser;
+  private final NegativeLookups negativeLookups;
 
   @Inject
-  CommitMessageFetcher(GitRepositoryManager repoManager) {
+  CommitMessageFetcher(
+      GitRepositoryManager repoManager,
+      @Named(CACHE_NAME) LoadingCache<Key, ImmutableList<String>> cache,
+      ZuulMetrics metrics,
+      DependsOnParser parser,
+      NegativeLookups negativeLookups) {
     this.repoManager = repoManager;
+    this.cache = cache;
+    this.metrics = metrics;
+    this.parser = parser;
+    this.negativeLookups = negativeLookups;
+  }
+
+  /**
+   * Fetches the Depends-On footers of a commit, as Change-Ids or change numbers as returned by
+   * {@link DependsOnParser}.
+   */
+  public ImmutableList<String> fetchDependsOn(Project.NameKey p, ObjectId rev)
+      throws RepositoryNotFoundException, IOException {
+    negativeLookups.checkProject(p);
+    try {
+      return cache.get(new Key(p, rev));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof RepositoryNotFoundException) {
+        negativeLookups.putMissingProject(p);
+      }
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Fetches the Depends-On footers of several commits of a project.
+   *
+   * <p>Commits that are not cached yet are all read through a single repository and {@code
+   * ObjectReader}, instead of opening the repository once per commit. A single missing commit is
+   * loaded through the cache, so that concurrent lookups of it share the read.
+   */
+  public Map<ObjectId, ImmutableList<String>> fetchAllDependsOn(
+      Project.NameKey p, Collection<ObjectId> revs)
+      throws RepositoryNotFoundException, IOException {
+    Map<ObjectId, ImmutableList<String>> dependsOn = new HashMap<>();
+    List<Key> missing = new ArrayList<>();
+    for (ObjectId rev : revs) {
+      Key key = new Key(p, rev);
+      ImmutableList<String> ids = cache.getIfPresent(key);
+      if (ids != null) {
+        dependsOn.put(key.commit, ids);
+      } else {
+        missing.add(key);
+      }
+    }
+    if (missing.isEmpty()) {
+      return dependsOn;
+    }
+    if (missing.size() == 1) {
+      // Let concurrent lookups of the same commit wait for a single load.
+      Key key = missing.get(0);
+      dependsOn.put(key.commit, fetchDependsOn(key.project, key.commit));
+      return dependsOn;
+    }
+
+    try (Repository repo = openRepository(p);
+        ObjectReader reader = repo.newObjectReader()) {
+      for (Key key : missing) {
+        ImmutableList<String> ids = readDependsOn(reader, key.commit, metrics, parser);
+        cache.put(key, ids);
+        dependsOn.put(key.commit, ids);
+      }
+    }
+    return dependsOn;
   }
 
-  public String fetch(Project.NameKey p, String rev)
+  /** Opens a repository, failing fast for projects that were recently found to be missing. */
+  private Repository openRepository(Project.NameKey p)
       throws RepositoryNotFoundException, IOException {
-    try (Repository repo = repoManager.openRepository(p);
-        RevWalk rw = new RevWalk(repo)) {
-      RevCommit commit = rw.parseCommit(ObjectId.fromString(rev));
-      return commit.getFullMessage();
+    negativeLookups.checkProject(p);
+    try {
+      return repoManager.openRepository(p);
+    } catch (RepositoryNotFoundException e) {
+      negativeLookups.putMissingProject(p);
+      throw e;
+    }
+  }
+
+  private static ImmutableList<String> readDependsOn(
+      ObjectReader reader, ObjectId id, ZuulMetrics metrics, DependsOnParser parser)
+      throws IOException {
+    byte[] raw;
+    try (Timer0.Context ctx = metrics.readCommitLatency.start()) {
+      raw = readCommit(reader, id);
+    }
+    try (Timer0.Context ctx = metrics.parseLatency.start()) {
+      return parser.parseCommit(raw);
+    }
+  }
+
+  /** Reads the raw bytes of a commit object, without parsing it. */
+  static byte[] readCommit(ObjectReader reader, ObjectId id) throws IOException {
+    ObjectLoader loader = reader.open(id);
+    if (loader.getType() != Constants.OBJ_COMMIT) {
+      throw new IncorrectObjectTypeException(id, Constants.OBJ_COMMIT);
+    }
+    return loader.getCachedBytes(MAX_COMMIT_SIZE);
+  }
+
+  static class Key {
+    final Project.NameKey project;
+    final ObjectId commit;
+
+    Key(Project.NameKey project, ObjectId commit) {
+      this.project = project;
+      this.commit = commit.copy();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return project.equals(other.project) && commit.equals(other.commit);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(project, commit);
+    }
+
+    /** Serializes the raw commit SHA-1 followed by the project name. */
+    enum Serializer implements CacheSerializer<Key> {
+      INSTANCE;
+
+      @Override
+      public byte[] serialize(Key key) {
+        byte[] name = key.project.get().getBytes(UTF_8);
+        byte[] out = new byte[Constants.OBJECT_ID_LENGTH + name.length];
+        key.commit.copyRawTo(out, 0);
+        System.arraycopy(name, 0, out, Constants.OBJECT_ID_LENGTH, name.length);
+        return out;
+      }
+
+      @Override
+      public Key deserialize(byte[] in) {
+        return new Key(
+            Project.nameKey(
+                new String(Arrays.copyOfRange(in, Constants.OBJECT_ID_LENGTH, in.length), UTF_8)),
+            ObjectId.fromRaw(in, 0));
+      }
+    }
+  }
+
+  /** Serializes the references separated by newlines. */
+  enum DependsOnSerializer implements CacheSerializer<ImmutableList<String>> {
+    INSTANCE;
+
+    @Override
+    public byte[] serialize(ImmutableList<String> dependsOn) {
+      return String.join("\n", dependsOn).getBytes(UTF_8);
+    }
+
+    @Override
+    public ImmutableList<String> deserialize(byte[] in) {
+      if (in.length == 0) {
+        return ImmutableList.of();
+      }
+      return ImmutableList.copyOf(Splitter.on('\n').split(new String(in, UTF_8)));
+    }
+  }
+
+  static class Loader extends CacheLoader<Key, ImmutableList<String>> {
+    private final GitRepositoryManager repoManager;
+    private final ZuulMetrics metrics;
+    private final DependsOnParser parser;
+
+    @Inject
+    Loader(GitRepositoryManager repoManager, ZuulMetrics metrics, DependsOnParser parser) {
+      this.repoManager = repoManager;
+      this.metrics = metrics;
+      this.parser = parser;
+    }
+
+    @Override
+    public ImmutableList<String> load(Key key) throws RepositoryNotFoundException, IOException {
+      try (Repository repo = repoManager.openRepository(key.project);
+          ObjectReader reader = repo.newObjectReader()) {
+        return readDependsOn(reader, key.commit, metrics, parser);
+      }
+    }
+  }
+
+  static class DependsOnWeigher implements Weigher<Key, ImmutableList<String>> {
+    @Override
+    public int weigh(Key key, ImmutableList<String> dependsOn) {
+      int weight = Constants.OBJECT_ID_LENGTH + 2 * key.project.get().length();
+      for (String id : dependsOn) {
+        weight += 2 * id.length();
+      }
+      return weight;
     }
   }
 }
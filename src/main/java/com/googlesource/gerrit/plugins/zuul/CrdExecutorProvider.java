@@ -0,0 +1,57 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Provides the {@link CrdExecutor}, a work queue with {@code plugin.zuul.threads} threads.
+ *
+ * <p>Without threads, tasks run directly in the submitting thread. Gerrit's work queues only accept
+ * {@code Runnable} tasks, so the queue is decorated to run submitted callables through {@link
+ * ExecutorService#execute}.
+ */
+@Singleton
+public class CrdExecutorProvider implements Provider<ExecutorService>, LifecycleListener {
+  private final ExecutorService executor;
+
+  @Inject
+  CrdExecutorProvider(WorkQueue workQueue, ZuulConfig cfg) {
+    int threads = cfg.getThreads();
+    executor =
+        threads > 0
+            ? MoreExecutors.listeningDecorator(workQueue.createQueue(threads, "Zuul-CRD"))
+            : MoreExecutors.newDirectExecutorService();
+  }
+
+  @Override
+  public ExecutorService get() {
+    return executor;
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    executor.shutdownNow();
+  }
+}
@@ -15,9 +15,13 @@
 package com.googlesource.gerrit.plugins.zuul;
 
 import java.util.List;
+import java.util.Map;
 
 public class CrdInfo {
   public List<String> dependsOn;
   public List<String> neededBy;
   public boolean cycle;
+  public Boolean incomplete;
+  public Boolean moreNeededBy;
+  public Map<String, List<CrdChangeInfo>> changes;
 }
@@ -0,0 +1,90 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.FooterConstants;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.server.events.CommitReceivedEvent;
+import com.google.gerrit.server.git.validators.CommitValidationException;
+import com.google.gerrit.server.git.validators.CommitValidationListener;
+import com.google.gerrit.server.git.validators.CommitValidationMessage;
+import com.google.gerrit.server.git.validators.ValidationMessage;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.List;
+
+/**
+ * Checks whether the Depends-On footers of pushed commits close a dependency cycle.
+ *
+ * <p>The check only follows the in-memory {@link DependencyIndex}, so that it adds no index queries
+ * or repository reads to a push. Commits of the same push that depend on each other are not in the
+ * index yet, so cycles among them are not detected.
+ */
+@Singleton
+public class CycleValidator implements CommitValidationListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  public enum Action {
+    OFF,
+    WARN,
+    REJECT
+  }
+
+  private final DependencyIndex index;
+  private final ZuulConfig cfg;
+  private final DependsOnParser parser;
+
+  @Inject
+  CycleValidator(DependencyIndex index, ZuulConfig cfg, DependsOnParser parser) {
+    this.index = index;
+    this.cfg = cfg;
+    this.parser = parser;
+  }
+
+  @Override
+  public List<CommitValidationMessage> onCommitReceived(CommitReceivedEvent receiveEvent)
+      throws CommitValidationException {
+    Action action = cfg.getCycleCheck();
+    if (action == Action.OFF || !cfg.useDependencyIndex() || !index.isComplete()) {
+      return ImmutableList.of();
+    }
+    ImmutableList<String> dependsOn = parser.parseCommit(receiveEvent.commit.getRawBuffer());
+    if (dependsOn.isEmpty()) {
+      return ImmutableList.of();
+    }
+    List<String> changeIds = receiveEvent.commit.getFooterLines(FooterConstants.CHANGE_ID);
+    if (changeIds.isEmpty()) {
+      return ImmutableList.of();
+    }
+    Change.Key key = Change.key(changeIds.get(changeIds.size() - 1));
+
+    List<String> cycle = index.findCycle(key, dependsOn, cfg.getGraphMaxSize());
+    if (cycle.isEmpty()) {
+      return ImmutableList.of();
+    }
+    String message =
+        String.format(
+            "Depends-On of commit %s closes a dependency cycle: %s",
+            receiveEvent.commit.abbreviate(7).name(), String.join(" -> ", cycle));
+    logger.atFine().log("%s", message);
+    if (action == Action.REJECT) {
+      throw new CommitValidationException(
+          "dependency cycle", new CommitValidationMessage(message, ValidationMessage.Type.ERROR));
+    }
+    return ImmutableList.of(new CommitValidationMessage(message, ValidationMessage.Type.WARNING));
+  }
+}
@@ -0,0 +1,166 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.gerrit.entities.Change;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Depends-On graph between Change-Ids. An edge points from a change to its dependency. */
+public class DependencyGraph {
+  private final Map<String, Set<String>> edges = new LinkedHashMap<>();
+  private final Set<Integer> changes = new LinkedHashSet<>();
+  private boolean truncated;
+
+  public void addNode(String node) {
+    edges.computeIfAbsent(node, n -> new LinkedHashSet<>());
+  }
+
+  public void addEdge(String from, String to) {
+    addNode(to);
+    edges.computeIfAbsent(from, n -> new LinkedHashSet<>()).add(to);
+  }
+
+  /** Records a change that a node of the graph was resolved to. */
+  public void addChange(Change.Id id) {
+    changes.add(id.get());
+  }
+
+  /** Returns the numbers of the changes that the nodes of the graph were resolved to. */
+  public Set<Integer> getChanges() {
+    return Collections.unmodifiableSet(changes);
+  }
+
+  public boolean contains(String node) {
+    return edges.containsKey(node);
+  }
+
+  public int size() {
+    return edges.size();
+  }
+
+  /** Whether some dependencies were left out because of depth or size limits. */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  public void setTruncated() {
+    truncated = true;
+  }
+
+  public Map<String, List<String>> getEdges() {
+    Map<String, List<String>> out = new LinkedHashMap<>();
+    for (Map.Entry<String, Set<String>> e : edges.entrySet()) {
+      out.put(e.getKey(), new ArrayList<>(e.getValue()));
+    }
+    return out;
+  }
+
+  /** Whether the nodes of a strongly connected component form a dependency cycle. */
+  public boolean isCycle(List<String> component) {
+    if (component.size() > 1) {
+      return true;
+    }
+    String node = component.get(0);
+    return edges.get(node).contains(node);
+  }
+
+  /**
+   * Computes the strongly connected components with Tarjan's algorithm.
+   *
+   * <p>Every node belongs to exactly one component. A component is listed only after all the
+   * components it depends on, so the result is a valid order to merge the changes in.
+   */
+  public List<List<String>> stronglyConnectedComponents() {
+    Map<String, Integer> index = new HashMap<>();
+    Map<String, Integer> lowLink = new HashMap<>();
+    Deque<String> stack = new ArrayDeque<>();
+    Set<String> onStack = new HashSet<>();
+    List<List<String>> components = new ArrayList<>();
+
+    // Iterative depth-first search, so that long dependency chains cannot overflow the stack.
+    Deque<Frame> work = new ArrayDeque<>();
+    for (String root : edges.keySet()) {
+      if (index.containsKey(root)) {
+        continue;
+      }
+      work.push(visit(root, index, lowLink, stack, onStack));
+      while (!work.isEmpty()) {
+        Frame frame = work.peek();
+        if (frame.successors.hasNext()) {
+          String next = frame.successors.next();
+          if (!index.containsKey(next)) {
+            work.push(visit(next, index, lowLink, stack, onStack));
+          } else if (onStack.contains(next)) {
+            lowLink.put(frame.node, Math.min(lowLink.get(frame.node), index.get(next)));
+          }
+          continue;
+        }
+
+        work.pop();
+        if (!work.isEmpty()) {
+          String parent = work.peek().node;
+          lowLink.put(parent, Math.min(lowLink.get(parent), lowLink.get(frame.node)));
+        }
+        if (lowLink.get(frame.node).equals(index.get(frame.node))) {
+          List<String> component = new ArrayList<>();
+          String member;
+          do {
+            member = stack.pop();
+            onStack.remove(member);
+            component.add(member);
+          } while (!member.equals(frame.node));
+          Collections.reverse(component);
+          components.add(component);
+        }
+      }
+    }
+    return components;
+  }
+
+  private Frame visit(
+      String node,
+      Map<String, Integer> index,
+      Map<String, Integer> lowLink,
+      Deque<String> stack,
+      Set<String> onStack) {
+    int i = index.size();
+    index.put(node, i);
+    lowLink.put(node, i);
+    stack.push(node);
+    onStack.add(node);
+    return new Frame(node, edges.get(node).iterator());
+  }
+
+  private static class Frame {
+    final String node;
+    final Iterator<String> successors;
+
+    Frame(String node, Iterator<String> successors) {
+      this.node = node;
+      this.successors = successors;
+    }
+  }
+}
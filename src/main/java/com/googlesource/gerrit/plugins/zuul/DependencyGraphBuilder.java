@@ -0,0 +1,135 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.server.change.RevisionResource;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Follows Depends-On footers transitively, starting from a revision.
+ *
+ * <p>The graph is expanded breadth first. All Change-Ids of one level are resolved together, and
+ * the resolved changes are checked for visibility with a single query per level, so that the graph
+ * never goes through changes the caller cannot see.
+ */
+@Singleton
+public class DependencyGraphBuilder {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final CommitMessageFetcher commitMessageFetcher;
+  private final ChangeDependencies changeDependencies;
+  private final VisibleChanges visibleChanges;
+
+  @Inject
+  DependencyGraphBuilder(
+      CommitMessageFetcher commitMessageFetcher,
+      ChangeDependencies changeDependencies,
+      VisibleChanges visibleChanges) {
+    this.commitMessageFetcher = commitMessageFetcher;
+    this.changeDependencies = changeDependencies;
+    this.visibleChanges = visibleChanges;
+  }
+
+  /**
+   * Builds the dependency graph of a revision.
+   *
+   * @param rsrc the revision to start from
+   * @param depth maximum number of Depends-On hops to follow
+   * @param limit maximum number of nodes in the graph
+   */
+  public DependencyGraph build(RevisionResource rsrc, int depth, int limit)
+      throws IOException, BadRequestException, AuthException, PermissionBackendException {
+    DependencyGraph graph = new DependencyGraph();
+    String root = rsrc.getChange().getKey().get();
+    graph.addNode(root);
+    graph.addChange(rsrc.getChange().getId());
+
+    List<String> dependsOn =
+        commitMessageFetcher.fetchDependsOn(
+            rsrc.getChange().getProject(), rsrc.getPatchSet().commitId());
+    Map<String, Set<String>> frontier = new LinkedHashMap<>();
+    frontier.put(root, new LinkedHashSet<>(dependsOn));
+
+    for (int level = 0; !frontier.isEmpty(); level++) {
+      if (level == depth) {
+        graph.setTruncated();
+        break;
+      }
+
+      Set<String> targets = new LinkedHashSet<>();
+      frontier.values().forEach(targets::addAll);
+      ImmutableMap<String, ImmutableList<ChangeDependencies.Node>> resolved =
+          changeDependencies.getAll(targets);
+      List<Change.Id> ids = new ArrayList<>();
+      resolved.values().forEach(nodes -> nodes.forEach(n -> ids.add(n.id)));
+      Map<Integer, ChangeInfo> visible = visibleChanges.byNumbers(ids);
+
+      Map<String, Set<String>> next = new LinkedHashMap<>();
+      for (Map.Entry<String, Set<String>> e : frontier.entrySet()) {
+        String from = e.getKey();
+        for (String target : e.getValue()) {
+          boolean found = false;
+          for (ChangeDependencies.Node node : resolved.get(target)) {
+            if (!visible.containsKey(node.id.get())) {
+              continue;
+            }
+            found = true;
+            String to = node.key.get();
+            if (!graph.contains(to)) {
+              if (graph.size() >= limit) {
+                graph.setTruncated();
+                continue;
+              }
+              next.put(to, new LinkedHashSet<>());
+            }
+            graph.addEdge(from, to);
+            graph.addChange(node.id);
+            if (next.containsKey(to)) {
+              // A Change-Id used on several branches is a single node.
+              next.get(to).addAll(node.dependsOn);
+            }
+          }
+          if (!found) {
+            logger.atFinest().log("Cannot resolve dependency %s of %s", target, from);
+            if (graph.contains(target) || graph.size() < limit) {
+              graph.addEdge(from, target);
+            } else {
+              graph.setTruncated();
+            }
+          }
+        }
+      }
+      next.values().removeIf(Set::isEmpty);
+      frontier = next;
+    }
+    return graph;
+  }
+}
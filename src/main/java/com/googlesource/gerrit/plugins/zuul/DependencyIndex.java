@@ -0,0 +1,501 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Change;
+import com.google.inject.Singleton;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reverse index of Depends-On footers.
+ *
+ * <p>Maps each referenced Change-Id or change number to the changes whose current patch set carries
+ * a Depends-On footer for it, so that {@code needed_by} is a key lookup instead of a full-text
+ * search over all commit messages.
+ *
+ * <p>Each referenced Change-Id also has a version, which changes whenever a change that depends on
+ * it is updated or removed. Versions are unique within the lifetime of the index, so that they can
+ * be used in ETags. Similarly, every update of a change bumps the version of its Change-Id. These
+ * versions are kept in a fixed number of buckets, so Change-Ids that share a bucket share their
+ * versions.
+ *
+ * <p>To fit large sites in memory, Change-Ids and other targets are interned into dense integer ids
+ * by a {@link ChangeIdTable}. Each change with Depends-On footers gets a slot, which holds the ids
+ * of its targets, and each target holds the slots of the changes that depend on it, both in
+ * primitive arrays. An edge thus costs about 8 bytes instead of the strings and boxed entries of
+ * hash maps.
+ *
+ * <p>The index remembers which changes were updated or removed through {@link #update} and {@link
+ * #remove}, so that {@link DependencyIndexStore} only writes those. Entries read back from the
+ * store do not count as local changes.
+ */
+@Singleton
+public class DependencyIndex {
+  private static final int CHANGE_VERSION_BUCKETS = 1 << 12;
+  /** Length of the shortest Change-Id that Depends-On footers can refer to. */
+  static final int MIN_CHANGE_ID_LENGTH = 9;
+
+  private static final int[] NO_SLOTS = new int[0];
+
+  /** Depends-On footers of a single change. */
+  public static class Entry {
+    public final Change.Id id;
+    public final Change.Key key;
+    public final ImmutableList<String> dependsOn;
+
+    Entry(Change.Id id, Change.Key key, Collection<String> dependsOn) {
+      this.id = id;
+      this.key = key;
+      this.dependsOn = ImmutableList.copyOf(dependsOn);
+    }
+  }
+
+  private final ChangeIdTable ids = new ChangeIdTable();
+  /** Maps change numbers to their slots. */
+  private final IntIntMap slots = new IntIntMap();
+
+  // Indexed by slot.
+  private int[] sourceNumbers = new int[16];
+  private int[] sourceKeys = new int[16];
+  private int[][] sourceTargets = new int[16][];
+  private int[] freeSlots = new int[16];
+  private int freeSlotCount;
+  private int nextSlot;
+
+  // Indexed by the ids of targets, holding the slots that depend on them in insertion order.
+  private int[][] targetSources = new int[16][];
+  private int[] targetSourceCounts = new int[16];
+  private long[] versions = new long[16];
+
+  /** Numbers of the changes whose entries changed since they were last stored. */
+  private final BitSet dirty = new BitSet();
+
+  private long edges;
+  /** Number of elements of the arrays in {@code sourceTargets} and {@code targetSources}. */
+  private long edgeArrayLength;
+
+  private long edgeArrays;
+
+  private final long[] changeVersions = new long[CHANGE_VERSION_BUCKETS];
+  private final long epoch = new SecureRandom().nextLong();
+  private long generation;
+  private long removals;
+
+  /** Whether a reindex of all changes finished. */
+  private volatile boolean complete;
+
+  /**
+   * Whether the index holds the Depends-On footers of all changes. Until a reindex finished, it
+   * only knows the changes that were indexed since the plugin was installed.
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /** Records that the index holds the Depends-On footers of all changes. */
+  public void setComplete() {
+    complete = true;
+  }
+
+  /** Replaces the recorded Depends-On footers of a change. */
+  public synchronized void update(Change.Id id, Change.Key key, Collection<String> dependsOn) {
+    put(id, key, dependsOn);
+    markDirty(id);
+  }
+
+  public synchronized void remove(Change.Id id) {
+    removeEntry(id);
+    removals = ++generation;
+    markDirty(id);
+  }
+
+  /**
+   * Applies an entry read from the store, unless the change was updated locally since it was last
+   * stored. A {@code null} key removes the entry.
+   */
+  synchronized void applyStored(
+      Change.Id id, @Nullable Change.Key key, Collection<String> dependsOn) {
+    if (id.get() >= 0 && dirty.get(id.get())) {
+      return;
+    }
+    if (key != null) {
+      put(id, key, dependsOn);
+    } else if (slots.get(id.get()) >= 0) {
+      removeEntry(id);
+      removals = ++generation;
+    }
+  }
+
+  /** Returns and forgets the numbers of the changes that changed since they were last stored. */
+  synchronized BitSet takeDirty() {
+    BitSet changed = (BitSet) dirty.clone();
+    dirty.clear();
+    return changed;
+  }
+
+  /** Marks changes as changed again, e.g. after they could not be stored. */
+  synchronized void markDirty(BitSet changed) {
+    dirty.or(changed);
+  }
+
+  private void markDirty(Change.Id id) {
+    if (id.get() >= 0) {
+      dirty.set(id.get());
+    }
+  }
+
+  private void put(Change.Id id, Change.Key key, Collection<String> dependsOn) {
+    removeEntry(id);
+    changeVersions[bucket(key.get())] = ++generation;
+    if (dependsOn.isEmpty()) {
+      return;
+    }
+    int slot = allocateSlot();
+    slots.put(id.get(), slot);
+    sourceNumbers[slot] = id.get();
+    sourceKeys[slot] = ids.acquire(key.get());
+    int[] targets = new int[dependsOn.size()];
+    int count = 0;
+    for (String target : dependsOn) {
+      int t = ids.acquire(target);
+      if (indexOf(targets, count, t) >= 0) {
+        ids.release(t);
+        continue;
+      }
+      targets[count++] = t;
+      addSource(t, slot);
+      versions[t] = ++generation;
+    }
+    sourceTargets[slot] = count == targets.length ? targets : Arrays.copyOf(targets, count);
+    edges += count;
+    edgeArrayLength += count;
+    edgeArrays++;
+  }
+
+  private void removeEntry(Change.Id id) {
+    int slot = slots.remove(id.get());
+    if (slot < 0) {
+      return;
+    }
+    int[] targets = sourceTargets[slot];
+    for (int t : targets) {
+      removeSource(t, slot);
+      versions[t] = targetSourceCounts[t] > 0 ? ++generation : 0;
+      ids.release(t);
+    }
+    ids.release(sourceKeys[slot]);
+    sourceTargets[slot] = null;
+    edges -= targets.length;
+    edgeArrayLength -= targets.length;
+    edgeArrays--;
+    if (freeSlotCount == freeSlots.length) {
+      freeSlots = Arrays.copyOf(freeSlots, 2 * freeSlots.length);
+    }
+    freeSlots[freeSlotCount++] = slot;
+  }
+
+  private int allocateSlot() {
+    if (freeSlotCount > 0) {
+      return freeSlots[--freeSlotCount];
+    }
+    if (nextSlot == sourceNumbers.length) {
+      int capacity = 2 * sourceNumbers.length;
+      sourceNumbers = Arrays.copyOf(sourceNumbers, capacity);
+      sourceKeys = Arrays.copyOf(sourceKeys, capacity);
+      sourceTargets = Arrays.copyOf(sourceTargets, capacity);
+    }
+    return nextSlot++;
+  }
+
+  private void addSource(int target, int slot) {
+    if (target >= targetSources.length) {
+      int capacity = Math.max(2 * targetSources.length, ids.capacity());
+      targetSources = Arrays.copyOf(targetSources, capacity);
+      targetSourceCounts = Arrays.copyOf(targetSourceCounts, capacity);
+      versions = Arrays.copyOf(versions, capacity);
+    }
+    int[] sources = targetSources[target];
+    int count = targetSourceCounts[target];
+    if (sources == null) {
+      sources = new int[1];
+      edgeArrays++;
+      edgeArrayLength += 1;
+    } else if (count == sources.length) {
+      int capacity = count + (count >> 1) + 1;
+      edgeArrayLength += capacity - count;
+      sources = Arrays.copyOf(sources, capacity);
+    }
+    sources[count] = slot;
+    targetSources[target] = sources;
+    targetSourceCounts[target] = count + 1;
+  }
+
+  private void removeSource(int target, int slot) {
+    int[] sources = targetSources[target];
+    int count = targetSourceCounts[target];
+    int i = indexOf(sources, count, slot);
+    System.arraycopy(sources, i + 1, sources, i, count - i - 1);
+    count--;
+    targetSourceCounts[target] = count;
+    if (count == 0) {
+      targetSources[target] = null;
+      edgeArrays--;
+      edgeArrayLength -= sources.length;
+    } else if (sources.length > 8 && count < sources.length / 4) {
+      // Shrink the arrays of former hubs.
+      int capacity = 2 * count;
+      edgeArrayLength -= sources.length - capacity;
+      targetSources[target] = Arrays.copyOf(sources, capacity);
+    }
+  }
+
+  private static int indexOf(int[] values, int count, int value) {
+    for (int i = 0; i < count; i++) {
+      if (values[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the slots that depend on {@code target}, which may be longer than their number. */
+  private int[] sources(String target) {
+    int t = ids.get(target);
+    if (t < 0 || t >= targetSources.length || targetSources[t] == null) {
+      return NO_SLOTS;
+    }
+    return targetSources[t];
+  }
+
+  private int sourceCount(String target) {
+    int t = ids.get(target);
+    return t >= 0 && t < targetSourceCounts.length ? targetSourceCounts[t] : 0;
+  }
+
+  /**
+   * Returns the changes that depend on {@code key}, leaving out changes that share the Change-Id
+   * themselves (e.g. cherry-picks to other branches).
+   */
+  public synchronized List<Change.Id> getNeededBy(Change.Key key) {
+    int[] sources = sources(key.get());
+    int count = sourceCount(key.get());
+    if (count == 0) {
+      return ImmutableList.of();
+    }
+    int k = ids.get(key.get());
+    List<Change.Id> neededBy = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      if (sourceKeys[sources[i]] != k) {
+        neededBy.add(Change.id(sourceNumbers[sources[i]]));
+      }
+    }
+    return neededBy;
+  }
+
+  /** Returns the changes that depend on the change {@code id} by its number or URL. */
+  public synchronized List<Change.Id> getNeededBy(Change.Id id) {
+    int[] sources = sources(id.toString());
+    int count = sourceCount(id.toString());
+    if (count == 0) {
+      return ImmutableList.of();
+    }
+    List<Change.Id> neededBy = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      if (sourceNumbers[sources[i]] != id.get()) {
+        neededBy.add(Change.id(sourceNumbers[sources[i]]));
+      }
+    }
+    return neededBy;
+  }
+
+  /**
+   * Finds the dependency cycle that a change with the Change-Id {@code key} would close by
+   * depending on {@code dependsOn}, by following the changes that depend on it transitively.
+   * Returns the Change-Ids of the cycle, starting and ending with {@code key}, or an empty list if
+   * there is no cycle among the first {@code limit} changes that depend on it.
+   */
+  public synchronized List<String> findCycle(
+      Change.Key key, Collection<String> dependsOn, int limit) {
+    // Maps each visited Change-Id to the Change-Id it depends on, on the way back to key.
+    Map<String, String> next = new HashMap<>();
+    // The numbers of the visited changes, which Depends-On footers can refer to as well.
+    Map<String, List<Integer>> numbers = new HashMap<>();
+    Deque<String> queue = new ArrayDeque<>();
+    next.put(key.get(), null);
+    queue.add(key.get());
+    while (!queue.isEmpty() && next.size() <= limit) {
+      String target = queue.remove();
+      for (int slot : getSources(target, numbers.get(target))) {
+        String sourceKey = ids.toString(sourceKeys[slot]);
+        String sourceNumber = Integer.toString(sourceNumbers[slot]);
+        numbers.computeIfAbsent(sourceKey, k -> new ArrayList<>()).add(sourceNumbers[slot]);
+        if (next.containsKey(sourceKey)) {
+          continue;
+        }
+        next.put(sourceKey, target);
+        if (dependsOn.stream().anyMatch(d -> sourceKey.startsWith(d) || d.equals(sourceNumber))) {
+          List<String> cycle = new ArrayList<>();
+          cycle.add(key.get());
+          for (String k = sourceKey; k != null; k = next.get(k)) {
+            cycle.add(k);
+          }
+          return cycle;
+        }
+        queue.add(sourceKey);
+      }
+    }
+    return ImmutableList.of();
+  }
+
+  /**
+   * Returns the slots of the changes that depend on {@code changeId}, including by abbreviated
+   * Change-Ids, or on any of the change {@code numbers}.
+   */
+  private List<Integer> getSources(String changeId, @Nullable List<Integer> numbers) {
+    List<Integer> result = new ArrayList<>();
+    if (numbers != null) {
+      for (int number : numbers) {
+        addSources(Integer.toString(number), result);
+      }
+    }
+    for (int len = MIN_CHANGE_ID_LENGTH; len <= changeId.length(); len++) {
+      addSources(changeId.substring(0, len), result);
+    }
+    return result;
+  }
+
+  private void addSources(String target, List<Integer> result) {
+    int[] sources = sources(target);
+    int count = sourceCount(target);
+    for (int i = 0; i < count; i++) {
+      result.add(sources[i]);
+    }
+  }
+
+  /**
+   * Returns the version of the changes that depend on {@code key}. Different instances of the index
+   * return different versions, unless no change depends on {@code key}.
+   */
+  public synchronized long getNeededByVersion(Change.Key key) {
+    return version(key.get());
+  }
+
+  /** Returns the version of the changes that depend on the change {@code id} by its number. */
+  public synchronized long getNeededByVersion(Change.Id id) {
+    return version(id.toString());
+  }
+
+  private long version(String target) {
+    int t = ids.get(target);
+    long version = t >= 0 && t < versions.length ? versions[t] : 0;
+    return version != 0 ? epoch + version : 0;
+  }
+
+  /**
+   * Returns the version of the changes with the Change-Id {@code changeId}, which changes whenever
+   * such a change is updated and whenever any change is removed.
+   */
+  public synchronized long getChangeVersion(String changeId) {
+    // Both are taken from the same increasing generation, so any update raises the maximum.
+    return epoch + Math.max(changeVersions[bucket(changeId)], removals);
+  }
+
+  private static int bucket(String changeId) {
+    return changeId.hashCode() & (CHANGE_VERSION_BUCKETS - 1);
+  }
+
+  /** Returns the Change-Id of a change with recorded Depends-On footers, or {@code null}. */
+  @Nullable
+  public synchronized Change.Key getKey(Change.Id id) {
+    int slot = slots.get(id.get());
+    return slot >= 0 ? Change.key(ids.toString(sourceKeys[slot])) : null;
+  }
+
+  /** Whether Depends-On footers are recorded for the change. */
+  public synchronized boolean contains(Change.Id id) {
+    return slots.get(id.get()) >= 0;
+  }
+
+  /** Returns the recorded Depends-On footers of a change, or {@code null}. */
+  @Nullable
+  public synchronized Entry getEntry(Change.Id id) {
+    int slot = slots.get(id.get());
+    return slot >= 0 ? entry(slot) : null;
+  }
+
+  public synchronized List<Entry> entries() {
+    List<Entry> entries = new ArrayList<>(slots.size());
+    for (int slot = 0; slot < nextSlot; slot++) {
+      if (sourceTargets[slot] != null) {
+        entries.add(entry(slot));
+      }
+    }
+    return entries;
+  }
+
+  private Entry entry(int slot) {
+    int[] targets = sourceTargets[slot];
+    List<String> dependsOn = new ArrayList<>(targets.length);
+    for (int t : targets) {
+      dependsOn.add(ids.toString(t));
+    }
+    return new Entry(
+        Change.id(sourceNumbers[slot]), Change.key(ids.toString(sourceKeys[slot])), dependsOn);
+  }
+
+  /** Returns the number of changes with recorded Depends-On footers. */
+  public synchronized int size() {
+    return slots.size();
+  }
+
+  /** Returns the number of recorded Depends-On footers. */
+  public synchronized long edgeCount() {
+    return edges;
+  }
+
+  /** Returns the number of interned Change-Ids, change numbers and abbreviated Change-Ids. */
+  public synchronized int keyCount() {
+    return ids.size();
+  }
+
+  /** Returns an estimate of the heap used by the index, in bytes. */
+  public synchronized long memoryBytes() {
+    return ids.memoryBytes()
+        + slots.memoryBytes()
+        + MemoryEstimate.array(sourceNumbers.length, Integer.BYTES)
+        + MemoryEstimate.array(sourceKeys.length, Integer.BYTES)
+        + MemoryEstimate.array(sourceTargets.length, MemoryEstimate.REFERENCE)
+        + MemoryEstimate.array(freeSlots.length, Integer.BYTES)
+        + MemoryEstimate.array(targetSources.length, MemoryEstimate.REFERENCE)
+        + MemoryEstimate.array(targetSourceCounts.length, Integer.BYTES)
+        + MemoryEstimate.array(versions.length, Long.BYTES)
+        + MemoryEstimate.array(changeVersions.length, Long.BYTES)
+        + dirty.size() / Byte.SIZE
+        // Each array is aligned to 8 bytes, which adds 2 bytes on average.
+        + edgeArrays * (MemoryEstimate.ARRAY_HEADER + 2)
+        + edgeArrayLength * Integer.BYTES;
+  }
+}
@@ -0,0 +1,53 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/** Size and estimated heap usage of the {@link DependencyIndex}, reported as gauges. */
+@Singleton
+public class DependencyIndexMetrics {
+  @Inject
+  DependencyIndexMetrics(MetricMaker metricMaker, DependencyIndex index) {
+    metricMaker.newCallbackMetric(
+        "dependency_index/changes",
+        Integer.class,
+        new Description("Number of changes with Depends-On footers in the index")
+            .setGauge()
+            .setUnit("changes"),
+        index::size);
+    metricMaker.newCallbackMetric(
+        "dependency_index/edges",
+        Long.class,
+        new Description("Number of Depends-On footers in the index").setGauge().setUnit("edges"),
+        index::edgeCount);
+    metricMaker.newCallbackMetric(
+        "dependency_index/keys",
+        Integer.class,
+        new Description("Number of distinct Change-Ids and change numbers in the index")
+            .setGauge()
+            .setUnit("keys"),
+        index::keyCount);
+    metricMaker.newCallbackMetric(
+        "dependency_index/memory",
+        Long.class,
+        new Description("Estimated heap used by the index").setGauge().setUnit(Units.BYTES),
+        index::memoryBytes);
+  }
+}
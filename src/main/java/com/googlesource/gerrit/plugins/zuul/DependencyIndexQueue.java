@@ -0,0 +1,323 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.notedb.ChangeNotes;
+import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Updates the {@link DependencyIndex} and the {@code depends_on} cache in the background.
+ *
+ * <p>Changes are queued as Gerrit reports them and processed in batches by a single thread, so that
+ * the commits of a batch are read through one repository per project. A change that is queued
+ * several times before it is processed is only processed once.
+ *
+ * <p>Adding a change never blocks, because the callers are Gerrit's indexing and push threads. Once
+ * the queue is full, further changes are only remembered by number and project, and are moved into
+ * the queue as the background thread makes room. A bulk reindex therefore costs a few bytes per
+ * change until the background thread catches up.
+ *
+ * <p>Once a change is processed, CRD lookups of it only read from the cache and the index.
+ */
+@Singleton
+public class DependencyIndexQueue implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final ChangeNotes.Factory notesFactory;
+  private final CommitMessageFetcher commitMessageFetcher;
+  private final DependencyIndex index;
+  private final ChangeDependencies changeDependencies;
+  private final ExecutorService executor;
+  private final int capacity;
+  private final int batchSize;
+
+  private final LinkedHashMap<Change.Id, Project.NameKey> pending = new LinkedHashMap<>();
+  private DeferredChanges deferred = new DeferredChanges();
+  private boolean scheduled;
+  private boolean stopped;
+
+  @Inject
+  DependencyIndexQueue(
+      ChangeNotes.Factory notesFactory,
+      CommitMessageFetcher commitMessageFetcher,
+      DependencyIndex index,
+      ChangeDependencies changeDependencies,
+      WorkQueue workQueue,
+      ZuulConfig cfg) {
+    this(
+        notesFactory,
+        commitMessageFetcher,
+        index,
+        changeDependencies,
+        workQueue.createQueue(1, "Zuul-Dependency-Index"),
+        cfg.getPrecomputeQueueSize(),
+        cfg.getPrecomputeBatchSize());
+  }
+
+  @VisibleForTesting
+  DependencyIndexQueue(
+      ChangeNotes.Factory notesFactory,
+      CommitMessageFetcher commitMessageFetcher,
+      DependencyIndex index,
+      ChangeDependencies changeDependencies,
+      ExecutorService executor,
+      int capacity,
+      int batchSize) {
+    this.notesFactory = notesFactory;
+    this.commitMessageFetcher = commitMessageFetcher;
+    this.index = index;
+    this.changeDependencies = changeDependencies;
+    this.executor = executor;
+    this.capacity = Math.max(capacity, 1);
+    this.batchSize = Math.max(batchSize, 1);
+  }
+
+  @Override
+  public void start() {}
+
+  /** Processes the remaining changes, so that they are part of the stored index. */
+  @Override
+  public void stop() {
+    synchronized (this) {
+      stopped = true;
+    }
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(10, SECONDS)) {
+        logger.atWarning().log("Dependency index queue did not finish in time");
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+    }
+    drain();
+  }
+
+  /** Queues a change to update its entry in the index. */
+  public void add(Project.NameKey project, Change.Id id) {
+    synchronized (this) {
+      if (!stopped) {
+        if (pending.size() < capacity || pending.containsKey(id)) {
+          pending.put(id, project);
+          deferred.remove(id);
+        } else {
+          if (deferred.isEmpty()) {
+            logger.atWarning().log(
+                "Dependency index queue is full, deferring changes until it has room");
+          }
+          deferred.add(project, id);
+        }
+        schedule();
+        return;
+      }
+    }
+    process(ImmutableList.of(new Task(id, project)));
+  }
+
+  /** Drops a deleted change from the queue and the index. */
+  public void remove(Change.Id id) {
+    synchronized (this) {
+      pending.remove(id);
+      deferred.remove(id);
+    }
+    index.remove(id);
+  }
+
+  @VisibleForTesting
+  synchronized int size() {
+    return pending.size();
+  }
+
+  @VisibleForTesting
+  synchronized int deferredSize() {
+    return deferred.size();
+  }
+
+  private void schedule() {
+    if (scheduled) {
+      return;
+    }
+    try {
+      executor.execute(this::drain);
+      scheduled = true;
+    } catch (RejectedExecutionException e) {
+      stopped = true;
+      logger.atWarning().withCause(e).log("Cannot schedule dependency index update");
+    }
+  }
+
+  private void drain() {
+    for (List<Task> batch = nextBatch(); !batch.isEmpty(); batch = nextBatch()) {
+      process(batch);
+    }
+  }
+
+  private synchronized List<Task> nextBatch() {
+    if (!deferred.isEmpty()) {
+      while (pending.size() < capacity && !deferred.isEmpty()) {
+        deferred.poll(pending);
+      }
+      if (deferred.isEmpty()) {
+        // Releases the memory of the burst.
+        deferred = new DeferredChanges();
+      }
+    }
+    List<Task> batch = new ArrayList<>(Math.min(pending.size(), batchSize));
+    Iterator<Map.Entry<Change.Id, Project.NameKey>> it = pending.entrySet().iterator();
+    while (it.hasNext() && batch.size() < batchSize) {
+      Map.Entry<Change.Id, Project.NameKey> e = it.next();
+      batch.add(new Task(e.getKey(), e.getValue()));
+      it.remove();
+    }
+    if (batch.isEmpty()) {
+      scheduled = false;
+    }
+    return batch;
+  }
+
+  private void process(List<Task> batch) {
+    ListMultimap<Project.NameKey, ChangeNotes> byProject =
+        MultimapBuilder.linkedHashKeys().arrayListValues().build();
+    for (Task task : batch) {
+      try {
+        ChangeNotes notes = notesFactory.createChecked(task.project, task.id);
+        changeDependencies.invalidate(notes.getChange().getId(), notes.getChange().getKey());
+        if (notes.getCurrentPatchSet() == null) {
+          index.remove(task.id);
+        } else {
+          byProject.put(task.project, notes);
+        }
+      } catch (NoSuchChangeException e) {
+        index.remove(task.id);
+      } catch (RuntimeException e) {
+        logger.atWarning().withCause(e).log(
+            "Cannot update Depends-On index for change %s in %s", task.id, task.project);
+      }
+    }
+
+    for (Project.NameKey project : byProject.keySet()) {
+      List<ChangeNotes> changes = byProject.get(project);
+      try {
+        Map<ObjectId, ImmutableList<String>> dependsOn =
+            commitMessageFetcher.fetchAllDependsOn(
+                project,
+                changes.stream().map(n -> n.getCurrentPatchSet().commitId()).collect(toList()));
+        for (ChangeNotes notes : changes) {
+          Change change = notes.getChange();
+          index.update(
+              change.getId(),
+              change.getKey(),
+              dependsOn.get(notes.getCurrentPatchSet().commitId()));
+        }
+      } catch (IOException | RuntimeException e) {
+        logger.atWarning().withCause(e).log(
+            "Cannot update Depends-On index for %d changes in %s", changes.size(), project);
+      }
+    }
+  }
+
+  /** Changes that were added while the queue was full, in the order they were added. */
+  private static class DeferredChanges {
+    /** Change numbers to the indexes of their projects. */
+    private final IntIntMap changes = new IntIntMap();
+
+    private final List<Project.NameKey> projects = new ArrayList<>();
+    private final Map<Project.NameKey, Integer> projectIndexes = new HashMap<>();
+    /** Change numbers in the order they were added; may contain removed changes. */
+    private int[] order = new int[16];
+
+    private int head;
+    private int tail;
+
+    void add(Project.NameKey project, Change.Id id) {
+      int projectIndex =
+          projectIndexes.computeIfAbsent(
+              project,
+              p -> {
+                projects.add(p);
+                return projects.size() - 1;
+              });
+      if (changes.get(id.get()) < 0) {
+        if (tail == order.length) {
+          int live = tail - head;
+          int[] to = 2 * live > order.length ? new int[2 * order.length] : order;
+          System.arraycopy(order, head, to, 0, live);
+          order = to;
+          head = 0;
+          tail = live;
+        }
+        order[tail++] = id.get();
+      }
+      changes.put(id.get(), projectIndex);
+    }
+
+    void remove(Change.Id id) {
+      changes.remove(id.get());
+    }
+
+    /** Moves the oldest change, if it was not removed in the meantime, to {@code pending}. */
+    void poll(Map<Change.Id, Project.NameKey> pending) {
+      int projectIndex = changes.remove(order[head]);
+      if (projectIndex >= 0) {
+        pending.putIfAbsent(Change.id(order[head]), projects.get(projectIndex));
+      }
+      head++;
+    }
+
+    /** Whether there are no more entries to poll. */
+    boolean isEmpty() {
+      return head == tail;
+    }
+
+    int size() {
+      return changes.size();
+    }
+  }
+
+  private static class Task {
+    final Change.Id id;
+    final Project.NameKey project;
+
+    Task(Change.Id id, Project.NameKey project) {
+      this.id = id;
+      this.project = project;
+    }
+  }
+}
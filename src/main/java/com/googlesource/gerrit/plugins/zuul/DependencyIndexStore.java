@@ -0,0 +1,445 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.annotations.PluginData;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.GerritPersonIdent;
+import com.google.gerrit.server.config.AllProjectsName;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Supplier;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.Note;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Persists the {@link DependencyIndex} as notes under {@value #REF} in {@code All-Projects}, so
+ * that all servers of a site share it.
+ *
+ * <p>Each change with Depends-On footers has a note, keyed by the blob id of its change number. The
+ * first line of a note holds the change number and its Change-Id, separated by a blank, and each
+ * following line a target of its Depends-On footers. A note keyed by the zero id records that a
+ * reindex of all changes finished, so that servers only rely on the index once it is complete.
+ *
+ * <p>The index is read when the plugin starts. After that, it is synchronized periodically: the
+ * notes that other servers changed since the last synchronization are found by comparing the trees
+ * of the two commits and applied to the index, and the changes that were updated locally are
+ * written in a single commit. If another server updated the ref concurrently, the synchronization
+ * starts over from its commit.
+ */
+@Singleton
+public class DependencyIndexStore implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String REF = "refs/meta/zuul/dependencies";
+  /** File of the index in the plugin's data directory, before it was stored in notes. */
+  static final String LEGACY_FILE_NAME = "dependencies.idx";
+  /** Line of the legacy file that records that a reindex of all changes finished. */
+  static final String LEGACY_COMPLETE = "complete";
+
+  private static final int MAX_ATTEMPTS = 10;
+  /** Key of the note that records that a reindex of all changes finished. */
+  private static final ObjectId COMPLETE_NOTE = ObjectId.zeroId();
+
+  private final DependencyIndex index;
+  private final DependencyReindexer.RepositoryOpener opener;
+  private final Project.NameKey allProjects;
+  private final Supplier<PersonIdent> serverIdent;
+  private final Path legacyFile;
+  @Nullable private final ScheduledExecutorService executor;
+  private final long syncInterval;
+
+  /** The commit of the ref that the index was last synchronized with. */
+  @Nullable private ObjectId synced;
+
+  /** Whether the commit that the index was last synchronized with has the complete note. */
+  private boolean syncedComplete;
+
+  @Nullable private ScheduledFuture<?> syncTask;
+
+  @Inject
+  DependencyIndexStore(
+      DependencyIndex index,
+      GitRepositoryManager repoManager,
+      AllProjectsName allProjects,
+      @GerritPersonIdent Provider<PersonIdent> serverIdent,
+      @PluginData Path dataDir,
+      WorkQueue workQueue,
+      ZuulConfig cfg) {
+    this(
+        index,
+        repoManager::openRepository,
+        allProjects,
+        serverIdent::get,
+        dataDir,
+        workQueue.getDefaultQueue(),
+        cfg.getIndexSyncInterval());
+  }
+
+  /** Creates a store that is only synchronized when it is started, stopped or saved. */
+  public DependencyIndexStore(
+      DependencyIndex index,
+      DependencyReindexer.RepositoryOpener opener,
+      Project.NameKey allProjects,
+      Supplier<PersonIdent> serverIdent,
+      Path dataDir) {
+    this(index, opener, allProjects, serverIdent, dataDir, null, 0);
+  }
+
+  @VisibleForTesting
+  DependencyIndexStore(
+      DependencyIndex index,
+      DependencyReindexer.RepositoryOpener opener,
+      Project.NameKey allProjects,
+      Supplier<PersonIdent> serverIdent,
+      Path dataDir,
+      @Nullable ScheduledExecutorService executor,
+      long syncInterval) {
+    this.index = index;
+    this.opener = opener;
+    this.allProjects = allProjects;
+    this.serverIdent = serverIdent;
+    this.legacyFile = dataDir.resolve(LEGACY_FILE_NAME);
+    this.executor = executor;
+    this.syncInterval = syncInterval;
+  }
+
+  @Override
+  public void start() {
+    try {
+      long start = System.nanoTime();
+      sync();
+      logger.atInfo().log(
+          "Loaded Depends-On index with %d changes and %d footers in %d ms, using about %d KiB",
+          index.size(),
+          index.edgeCount(),
+          MILLISECONDS.convert(System.nanoTime() - start, NANOSECONDS),
+          index.memoryBytes() / 1024);
+      if (Files.exists(legacyFile)) {
+        migrate();
+      }
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot load Depends-On index from %s", allProjects);
+    }
+    if (executor != null && syncInterval > 0) {
+      syncTask =
+          executor.scheduleWithFixedDelay(
+              this::syncInBackground, syncInterval, syncInterval, MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (syncTask != null) {
+      syncTask.cancel(false);
+      syncTask = null;
+    }
+    try {
+      save();
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot store Depends-On index in %s", allProjects);
+    }
+  }
+
+  /** Synchronizes the index with the stored index, writing all local changes. */
+  public void save() throws IOException {
+    sync();
+  }
+
+  private void syncInBackground() {
+    try {
+      sync();
+    } catch (IOException | RuntimeException e) {
+      logger.atWarning().withCause(e).log("Cannot synchronize Depends-On index in %s", allProjects);
+    }
+  }
+
+  /**
+   * Applies the notes that changed since the last synchronization to the index, and then writes the
+   * local changes. Returns whether the ref existed before.
+   */
+  @VisibleForTesting
+  synchronized boolean sync() throws IOException {
+    BitSet changed = index.takeDirty();
+    try (Repository repo = opener.open(allProjects);
+        ObjectInserter inserter = repo.newObjectInserter();
+        ObjectReader reader = inserter.newReader();
+        RevWalk rw = new RevWalk(reader)) {
+      boolean existed = false;
+      for (int attempt = 1; ; attempt++) {
+        Ref ref = repo.exactRef(REF);
+        ObjectId tip = ref != null ? ref.getObjectId() : null;
+        existed |= tip != null;
+        if (tip != null && !tip.equals(synced)) {
+          catchUp(reader, rw, synced, tip, changed);
+        }
+        synced = tip;
+        boolean markComplete = index.isComplete() && !syncedComplete;
+        if (tip == null) {
+          // Nothing is stored yet, so store everything.
+          for (DependencyIndex.Entry entry : index.entries()) {
+            changed.set(entry.id.get());
+          }
+        }
+        if (changed.isEmpty() && !markComplete) {
+          return existed;
+        }
+
+        RevCommit parent = tip != null ? rw.parseCommit(tip) : null;
+        NoteMap notes = parent != null ? NoteMap.read(reader, parent) : NoteMap.newEmptyMap();
+        int written = write(notes, changed, inserter);
+        if (markComplete) {
+          notes.set(
+              COMPLETE_NOTE, inserter.insert(Constants.OBJ_BLOB, "complete\n".getBytes(UTF_8)));
+        } else if (written == 0) {
+          return existed;
+        }
+        ObjectId tree = notes.writeTree(inserter);
+        CommitBuilder cb = new CommitBuilder();
+        cb.setTreeId(tree);
+        if (parent != null) {
+          cb.setParentId(parent);
+        }
+        PersonIdent ident = serverIdent.get();
+        cb.setAuthor(ident);
+        cb.setCommitter(ident);
+        cb.setMessage(String.format("Update Depends-On index\n\nChanges: %d\n", written));
+        ObjectId commit = inserter.insert(cb);
+        inserter.flush();
+
+        RefUpdate ru = repo.updateRef(REF);
+        ru.setExpectedOldObjectId(tip != null ? tip : ObjectId.zeroId());
+        ru.setNewObjectId(commit);
+        ru.disableRefLog();
+        RefUpdate.Result result = ru.update(rw);
+        switch (result) {
+          case NEW:
+          case FAST_FORWARD:
+            synced = commit;
+            syncedComplete |= markComplete;
+            changed.clear();
+            return existed;
+          case LOCK_FAILURE:
+          case REJECTED:
+            if (attempt < MAX_ATTEMPTS) {
+              // Another server updated the index, so start over from its commit.
+              continue;
+            }
+            // fall through
+          default:
+            throw new IOException(String.format("Cannot update %s: %s", REF, result));
+        }
+      }
+    } finally {
+      index.markDirty(changed);
+    }
+  }
+
+  /** Writes the notes of the {@code changed} changes and returns how many notes differ. */
+  private int write(NoteMap notes, BitSet changed, ObjectInserter inserter) throws IOException {
+    ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+    int written = 0;
+    for (int number = changed.nextSetBit(0); number >= 0; number = changed.nextSetBit(number + 1)) {
+      ObjectId key = noteKey(formatter, number);
+      DependencyIndex.Entry entry = index.getEntry(Change.id(number));
+      ObjectId current = notes.get(key);
+      if (entry == null) {
+        if (current != null) {
+          notes.remove(key);
+          written++;
+        }
+        continue;
+      }
+      byte[] data = format(entry);
+      if (!formatter.idFor(Constants.OBJ_BLOB, data).equals(current)) {
+        notes.set(key, inserter.insert(Constants.OBJ_BLOB, data));
+        written++;
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Applies the notes that differ between the commits {@code from} and {@code to}, except for the
+   * locally {@code changed} changes, which are about to be written.
+   */
+  private void catchUp(
+      ObjectReader reader, RevWalk rw, @Nullable ObjectId from, ObjectId to, BitSet changed)
+      throws IOException {
+    RevCommit toCommit = rw.parseCommit(to);
+    if (from == null) {
+      for (Note note : NoteMap.read(reader, toCommit)) {
+        if (note.equals(COMPLETE_NOTE)) {
+          syncedComplete = true;
+          index.setComplete();
+          continue;
+        }
+        DependencyIndex.Entry entry = parse(reader.open(note.getData()).getCachedBytes());
+        if (!changed.get(entry.id.get())) {
+          index.applyStored(entry.id, entry.key, entry.dependsOn);
+        }
+      }
+      return;
+    }
+
+    // Notes move between paths when the fan-out of the tree changes, so a note can show up both
+    // as removed and as added. Removals are only applied for changes without a note.
+    Map<Change.Id, DependencyIndex.Entry> updated = new HashMap<>();
+    List<Change.Id> removed = new ArrayList<>();
+    try (TreeWalk tw = new TreeWalk(reader)) {
+      tw.addTree(rw.parseCommit(from).getTree());
+      tw.addTree(toCommit.getTree());
+      tw.setRecursive(true);
+      tw.setFilter(TreeFilter.ANY_DIFF);
+      while (tw.next()) {
+        if (tw.getPathString().replace("/", "").equals(COMPLETE_NOTE.name())) {
+          if (tw.getRawMode(1) != 0) {
+            syncedComplete = true;
+            index.setComplete();
+          }
+          continue;
+        }
+        if (tw.getRawMode(1) != 0) {
+          DependencyIndex.Entry entry = parse(reader.open(tw.getObjectId(1)).getCachedBytes());
+          updated.put(entry.id, entry);
+        } else {
+          removed.add(parse(reader.open(tw.getObjectId(0)).getCachedBytes()).id);
+        }
+      }
+    }
+    for (DependencyIndex.Entry entry : updated.values()) {
+      if (!changed.get(entry.id.get())) {
+        index.applyStored(entry.id, entry.key, entry.dependsOn);
+      }
+    }
+    for (Change.Id id : removed) {
+      if (!updated.containsKey(id) && !changed.get(id.get())) {
+        index.applyStored(id, null, ImmutableList.of());
+      }
+    }
+  }
+
+  /** Whether {@code repo} stores an index that a reindex of all changes was written to. */
+  static boolean isComplete(Repository repo) throws IOException {
+    Ref ref = repo.exactRef(REF);
+    if (ref == null) {
+      return false;
+    }
+    try (RevWalk rw = new RevWalk(repo)) {
+      return NoteMap.read(rw.getObjectReader(), rw.parseCommit(ref.getObjectId()))
+          .contains(COMPLETE_NOTE);
+    }
+  }
+
+  /**
+   * Merges the index that earlier versions of the plugin stored in the data directory into the
+   * stored index, and deletes it. Changes that are stored already, e.g. by another server that was
+   * upgraded first, keep their stored entries.
+   */
+  private void migrate() throws IOException {
+    int merged = 0;
+    try (BufferedReader reader = Files.newBufferedReader(legacyFile, UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.equals(LEGACY_COMPLETE)) {
+          index.setComplete();
+          continue;
+        }
+        List<String> fields = Splitter.on(' ').omitEmptyStrings().splitToList(line);
+        if (fields.size() >= 3) {
+          Change.Id id = Change.id(Integer.parseInt(fields.get(0)));
+          if (!index.contains(id)) {
+            index.update(id, Change.key(fields.get(1)), fields.subList(2, fields.size()));
+            merged++;
+          }
+        }
+      }
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid Depends-On index in " + legacyFile, e);
+    }
+    sync();
+    Files.delete(legacyFile);
+    logger.atInfo().log(
+        "Merged %d changes of Depends-On index %s into %s", merged, legacyFile, allProjects);
+  }
+
+  private static ObjectId noteKey(ObjectInserter.Formatter formatter, int number) {
+    return formatter.idFor(Constants.OBJ_BLOB, Integer.toString(number).getBytes(UTF_8));
+  }
+
+  private static byte[] format(DependencyIndex.Entry entry) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(entry.id.get()).append(' ').append(entry.key.get()).append('\n');
+    for (String target : entry.dependsOn) {
+      sb.append(target).append('\n');
+    }
+    return sb.toString().getBytes(UTF_8);
+  }
+
+  private static DependencyIndex.Entry parse(byte[] data) throws IOException {
+    List<String> lines = Splitter.on('\n').omitEmptyStrings().splitToList(new String(data, UTF_8));
+    List<String> header =
+        lines.isEmpty() ? ImmutableList.of() : Splitter.on(' ').splitToList(lines.get(0));
+    if (header.size() != 2) {
+      throw new IOException("Invalid Depends-On index note: " + new String(data, UTF_8));
+    }
+    try {
+      return new DependencyIndex.Entry(
+          Change.id(Integer.parseInt(header.get(0))),
+          Change.key(header.get(1)),
+          lines.subList(1, lines.size()));
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid change number in Depends-On index note", e);
+    }
+  }
+}
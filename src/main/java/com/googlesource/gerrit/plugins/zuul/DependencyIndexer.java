@@ -0,0 +1,70 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.events.ChangeIndexedListener;
+import com.google.gerrit.extensions.events.RevisionCreatedListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Keeps the {@link DependencyIndex} up to date.
+ *
+ * <p>Gerrit reindexes a change whenever a patch set is created and whenever the change is otherwise
+ * modified, so listening to index events is enough to follow new, amended and deleted Depends-On
+ * footers. New patch sets are queued right away as well, so that their Depends-On footers are
+ * usually read by the time the change screen asks for them.
+ *
+ * <p>The changes are processed in the background by the {@link DependencyIndexQueue}.
+ */
+@Singleton
+public class DependencyIndexer implements ChangeIndexedListener, RevisionCreatedListener {
+  private final DependencyIndexQueue queue;
+  private final ChangeDependencies changeDependencies;
+  private final NegativeLookups negativeLookups;
+
+  @Inject
+  DependencyIndexer(
+      DependencyIndexQueue queue,
+      ChangeDependencies changeDependencies,
+      NegativeLookups negativeLookups) {
+    this.queue = queue;
+    this.changeDependencies = changeDependencies;
+    this.negativeLookups = negativeLookups;
+  }
+
+  @Override
+  public void onRevisionCreated(RevisionCreatedListener.Event event) {
+    ChangeInfo change = event.getChange();
+    Change.Id id = Change.id(change._number);
+    Change.Key key = Change.key(change.changeId);
+    negativeLookups.onChangeCreated(id, key);
+    changeDependencies.invalidate(id, key);
+    queue.add(Project.nameKey(change.project), Change.id(change._number));
+  }
+
+  @Override
+  public void onChangeIndexed(String projectName, int id) {
+    queue.add(Project.nameKey(projectName), Change.id(id));
+  }
+
+  @Override
+  public void onChangeDeleted(int id) {
+    queue.remove(Change.id(id));
+  }
+}
@@ -0,0 +1,222 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.PatchSet;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.entities.RefNames;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.FooterKey;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * Fills the {@link DependencyIndex} from the changes of all projects.
+ *
+ * <p>Projects are scanned in parallel. The current patch set of each change is taken from the
+ * highest patch set ref under {@code refs/changes/}, and the commits of a project are all read
+ * through a single {@code ObjectReader}, without looking at the change meta data.
+ *
+ * <p>Progress is checkpointed periodically: the index is stored and the projects that are done are
+ * recorded in the data directory. An interrupted reindex resumes after the recorded projects.
+ */
+public class DependencyReindexer {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String PROGRESS_FILE_NAME = "reindex.progress";
+  private static final long CHECKPOINT_INTERVAL_SECONDS = 30;
+  private static final FooterKey CHANGE_ID = new FooterKey("Change-Id");
+
+  /** Opens the repository of a project. */
+  public interface RepositoryOpener {
+    Repository open(Project.NameKey project) throws IOException;
+  }
+
+  private final DependencyIndex index;
+  private final DependencyIndexStore store;
+  private final RepositoryOpener opener;
+  private final DependsOnParser parser;
+  private final Path progressFile;
+  private final PrintWriter out;
+
+  private final Set<Project.NameKey> done = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger failed = new AtomicInteger();
+  private final AtomicLong changes = new AtomicLong();
+  private final AtomicLong dependent = new AtomicLong();
+
+  public DependencyReindexer(
+      DependencyIndex index,
+      DependencyIndexStore store,
+      RepositoryOpener opener,
+      DependsOnParser parser,
+      Path dataDir,
+      PrintWriter out) {
+    this.index = index;
+    this.store = store;
+    this.opener = opener;
+    this.parser = parser;
+    this.progressFile = dataDir.resolve(PROGRESS_FILE_NAME);
+    this.out = out;
+  }
+
+  /**
+   * Scans the changes of {@code projects} with {@code threads} threads.
+   *
+   * @param resume whether to skip the projects that an interrupted run recorded as done
+   * @return whether all projects were scanned
+   */
+  public boolean run(Collection<Project.NameKey> projects, int threads, boolean resume)
+      throws IOException, InterruptedException {
+    List<Project.NameKey> todo = new ArrayList<>(projects);
+    if (resume && Files.exists(progressFile)) {
+      Set<String> recorded = new HashSet<>(Files.readAllLines(progressFile, UTF_8));
+      todo.removeIf(p -> recorded.contains(p.get()));
+      recorded.forEach(p -> done.add(Project.nameKey(p)));
+      out.format(
+          "Resuming reindex, %d of %d projects left\n", todo.size(), todo.size() + done.size());
+    } else {
+      Files.deleteIfExists(progressFile);
+    }
+    int total = todo.size() + done.size();
+
+    long start = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+    try {
+      for (Project.NameKey project : todo) {
+        executor.execute(() -> reindex(project));
+      }
+      executor.shutdown();
+      while (!executor.awaitTermination(CHECKPOINT_INTERVAL_SECONDS, SECONDS)) {
+        checkpoint();
+        report(total, start);
+      }
+    } finally {
+      if (!executor.isTerminated()) {
+        executor.shutdownNow();
+        executor.awaitTermination(10, SECONDS);
+        checkpoint();
+      }
+      out.flush();
+    }
+
+    report(total, start);
+    if (failed.get() > 0) {
+      checkpoint();
+      out.format("%d projects failed and are retried by the next run\n", failed.get());
+      out.flush();
+      return false;
+    }
+    index.setComplete();
+    store.save();
+    Files.deleteIfExists(progressFile);
+    return true;
+  }
+
+  private void reindex(Project.NameKey project) {
+    if (Thread.currentThread().isInterrupted()) {
+      return;
+    }
+    try (Repository repo = opener.open(project);
+        ObjectReader reader = repo.newObjectReader()) {
+      Map<Change.Id, PatchSet.Id> current = new HashMap<>();
+      Map<PatchSet.Id, ObjectId> commits = new HashMap<>();
+      for (Ref ref : repo.getRefDatabase().getRefsByPrefix(RefNames.REFS_CHANGES)) {
+        PatchSet.Id psId = PatchSet.Id.fromRef(ref.getName());
+        if (psId == null || ref.getObjectId() == null) {
+          continue;
+        }
+        commits.put(psId, ref.getObjectId());
+        current.merge(psId.changeId(), psId, (a, b) -> a.get() >= b.get() ? a : b);
+      }
+
+      for (PatchSet.Id psId : current.values()) {
+        byte[] raw = CommitMessageFetcher.readCommit(reader, commits.get(psId));
+        ImmutableList<String> dependsOn = parser.parseCommit(raw);
+        Change.Id id = psId.changeId();
+        if (!dependsOn.isEmpty()) {
+          Change.Key key = changeKey(raw);
+          if (key != null) {
+            index.update(id, key, dependsOn);
+            dependent.incrementAndGet();
+          }
+        } else if (index.contains(id)) {
+          index.remove(id);
+        }
+        changes.incrementAndGet();
+      }
+      done.add(project);
+    } catch (IOException | RuntimeException e) {
+      failed.incrementAndGet();
+      logger.atWarning().withCause(e).log("Cannot reindex Depends-On footers of %s", project);
+      out.format("Cannot reindex %s: %s\n", project, e.getMessage());
+    }
+  }
+
+  private static Change.Key changeKey(byte[] raw) {
+    List<String> ids = RevCommit.parse(raw).getFooterLines(CHANGE_ID);
+    return ids.isEmpty() ? null : Change.key(ids.get(ids.size() - 1));
+  }
+
+  /** Stores the index and then records the projects that are part of it. */
+  private void checkpoint() throws IOException {
+    List<String> names = new ArrayList<>(done.size());
+    done.forEach(p -> names.add(p.get()));
+    store.save();
+    Path tmp = progressFile.resolveSibling(PROGRESS_FILE_NAME + ".tmp");
+    Files.write(tmp, names, UTF_8);
+    Files.move(tmp, progressFile, REPLACE_EXISTING, ATOMIC_MOVE);
+  }
+
+  private void report(int total, long start) {
+    long elapsed = Math.max(NANOSECONDS.toMillis(System.nanoTime() - start), 1);
+    out.format(
+        "Reindexed %d/%d projects, %d changes (%d with Depends-On) in %ds, %d changes/s\n",
+        done.size(),
+        total,
+        changes.get(),
+        dependent.get(),
+        MILLISECONDS.toSeconds(elapsed),
+        changes.get() * 1000 / elapsed);
+    out.flush();
+  }
+}
@@ -0,0 +1,281 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.server.config.CanonicalWebUrl;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * Extracts the changes referenced by Depends-On footers of a commit message.
+ *
+ * <p>A footer can refer to a change by Change-Id, as {@code [Dd]epends-[Oo]n:? (I[0-9a-f]{8,40})}
+ * would match, by change number, or by the URL of a change on this server, as Zuul v3 writes them
+ * (e.g. {@code https://review.example.org/c/project/+/12345}). Change-Ids are returned as written,
+ * change numbers and URLs as the decimal change number. Change-Ids are matched anywhere in the
+ * message, like the regular expression above. Numbers and URLs are only matched on lines of the
+ * last paragraph that start with {@code Depends-On}, so that prose like "this depends-on 3 other
+ * fixes" is not taken for a dependency.
+ *
+ * <p>All forms are recognized directly on the raw bytes of a commit object, so that neither the
+ * commit nor its message need to be decoded into Strings. Only the matched references are
+ * allocated. All characters of the patterns are ASCII, which never occurs inside a multi-byte UTF-8
+ * sequence, so scanning the bytes is equivalent to scanning the decoded message.
+ */
+@Singleton
+public class DependsOnParser {
+  private static final byte[] EPENDS = "epends-".getBytes(US_ASCII);
+  private static final byte[] HASH = "#/".getBytes(US_ASCII);
+  private static final byte[] CHANGE = "c/".getBytes(US_ASCII);
+  private static final byte[] PLUS = "/+/".getBytes(US_ASCII);
+  private static final int MIN_HEX = 8;
+  private static final int MAX_HEX = 40;
+  private static final int MAX_DIGITS = 10;
+
+  /** Whether a parsed reference is a change number rather than a Change-Id. */
+  public static boolean isChangeNumber(String ref) {
+    return !ref.isEmpty() && isDigit((byte) ref.charAt(0));
+  }
+
+  /** Whether a parsed reference is an abbreviated Change-Id. */
+  public static boolean isAbbreviatedChangeId(String ref) {
+    return ref.length() < MAX_HEX + 1 && !isChangeNumber(ref);
+  }
+
+  /** The canonical web URL with a trailing slash, or {@code null} if URLs are not recognized. */
+  @Nullable private final byte[] urlPrefix;
+
+  @Inject
+  public DependsOnParser(@CanonicalWebUrl @Nullable String canonicalWebUrl) {
+    if (canonicalWebUrl == null || canonicalWebUrl.isEmpty()) {
+      urlPrefix = null;
+    } else {
+      urlPrefix =
+          (canonicalWebUrl.endsWith("/") ? canonicalWebUrl : canonicalWebUrl + "/").getBytes(UTF_8);
+    }
+  }
+
+  /** Parses the message of a raw commit object. */
+  public ImmutableList<String> parseCommit(byte[] rawCommit) {
+    int msgStart = RawParseUtils.commitMessage(rawCommit, 0);
+    if (msgStart < 0) {
+      return ImmutableList.of();
+    }
+    return parse(rawCommit, msgStart, rawCommit.length);
+  }
+
+  public ImmutableList<String> parse(String commitMessage) {
+    byte[] b = commitMessage.getBytes(UTF_8);
+    return parse(b, 0, b.length);
+  }
+
+  public ImmutableList<String> parse(byte[] b, int start, int end) {
+    ImmutableList.Builder<String> dependsOn = null;
+    // Only searched for once a change number or URL is found.
+    int footerStart = -1;
+    for (int i = start; i < end; i++) {
+      byte c = b[i];
+      if (c != 'D' && c != 'd') {
+        continue;
+      }
+      int p = i + 1;
+      if (!startsWith(b, p, end, EPENDS)) {
+        continue;
+      }
+      p += EPENDS.length;
+      if (p + 1 >= end || (b[p] != 'O' && b[p] != 'o') || b[p + 1] != 'n') {
+        continue;
+      }
+      p += 2;
+      if (p < end && b[p] == ':') {
+        p++;
+      }
+      if (p + 1 >= end || b[p] != ' ') {
+        continue;
+      }
+      p++;
+
+      String ref;
+      int refEnd;
+      if (b[p] == 'I') {
+        int hexStart = p + 1;
+        refEnd = hexStart;
+        while (refEnd < end && refEnd - hexStart < MAX_HEX && isLowerHex(b[refEnd])) {
+          refEnd++;
+        }
+        if (refEnd - hexStart < MIN_HEX) {
+          continue;
+        }
+        ref = new String(b, p, refEnd - p, US_ASCII);
+      } else if (!isLineStart(b, start, i)) {
+        continue;
+      } else if (isDigit(b[p])) {
+        if (footerStart < 0) {
+          footerStart = footerStart(b, start, end);
+        }
+        if (i < footerStart) {
+          continue;
+        }
+        refEnd = skipDigits(b, p, end);
+        if (refEnd < 0 || (refEnd < end && isAlphanumeric(b[refEnd]))) {
+          continue;
+        }
+        ref = changeNumber(b, p, refEnd);
+      } else if (urlPrefix != null && startsWith(b, p, end, urlPrefix)) {
+        if (footerStart < 0) {
+          footerStart = footerStart(b, start, end);
+        }
+        if (i < footerStart) {
+          continue;
+        }
+        refEnd = parseUrl(b, p + urlPrefix.length, end);
+        if (refEnd < 0 || (refEnd < end && isAlphanumeric(b[refEnd]))) {
+          continue;
+        }
+        ref = changeNumber(b, digitsStart(b, refEnd), refEnd);
+      } else {
+        continue;
+      }
+      if (ref == null) {
+        continue;
+      }
+      if (dependsOn == null) {
+        dependsOn = ImmutableList.builder();
+      }
+      dependsOn.add(ref);
+      // Continue after the match, like Matcher.find() does.
+      i = refEnd - 1;
+    }
+    return dependsOn != null ? dependsOn.build() : ImmutableList.of();
+  }
+
+  private static boolean isLineStart(byte[] b, int start, int p) {
+    return p == start || b[p - 1] == '\n';
+  }
+
+  /**
+   * Returns the start of the last paragraph of the message, i.e. of its footers, or {@code end} if
+   * the message has a single paragraph.
+   */
+  private static int footerStart(byte[] b, int start, int end) {
+    int footerStart = end;
+    boolean afterBlankLine = false;
+    for (int lineStart = start; lineStart < end; ) {
+      int lineEnd = lineStart;
+      boolean blank = true;
+      while (lineEnd < end && b[lineEnd] != '\n') {
+        blank &= isWhitespace(b[lineEnd]);
+        lineEnd++;
+      }
+      if (!blank && afterBlankLine) {
+        footerStart = lineStart;
+      }
+      afterBlankLine = blank;
+      lineStart = lineEnd + 1;
+    }
+    return footerStart;
+  }
+
+  /**
+   * Parses the path of a change URL, i.e. {@code [#/]c/<project>/+/<number>}, {@code
+   * [#/]c/<number>} or {@code <number>}, and returns the end of the change number, or -1.
+   */
+  private static int parseUrl(byte[] b, int p, int end) {
+    if (startsWith(b, p, end, HASH)) {
+      p += HASH.length;
+    }
+    if (startsWith(b, p, end, CHANGE)) {
+      p += CHANGE.length;
+      if (p < end && !isDigit(b[p])) {
+        // Skip the project name, which may contain slashes, up to the first "/+/".
+        while (p < end && !isWhitespace(b[p]) && !startsWith(b, p, end, PLUS)) {
+          p++;
+        }
+        if (!startsWith(b, p, end, PLUS)) {
+          return -1;
+        }
+        p += PLUS.length;
+      }
+    }
+    if (p >= end || !isDigit(b[p])) {
+      return -1;
+    }
+    return skipDigits(b, p, end);
+  }
+
+  /** Returns the end of the run of digits starting at {@code p}, or -1 if it is too long. */
+  private static int skipDigits(byte[] b, int p, int end) {
+    int q = p;
+    while (q < end && isDigit(b[q])) {
+      if (q - p == MAX_DIGITS) {
+        return -1;
+      }
+      q++;
+    }
+    return q;
+  }
+
+  private static int digitsStart(byte[] b, int digitsEnd) {
+    int p = digitsEnd;
+    while (isDigit(b[p - 1])) {
+      p--;
+    }
+    return p;
+  }
+
+  /** Returns the normalized change number of the digits, or {@code null} if it is out of range. */
+  @Nullable
+  private static String changeNumber(byte[] b, int start, int end) {
+    long n = 0;
+    for (int p = start; p < end; p++) {
+      n = n * 10 + (b[p] - '0');
+    }
+    return n > 0 && n <= Integer.MAX_VALUE ? Long.toString(n) : null;
+  }
+
+  private static boolean startsWith(byte[] b, int p, int end, byte[] prefix) {
+    if (p + prefix.length > end) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (b[p + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isLowerHex(byte c) {
+    return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+  }
+
+  private static boolean isDigit(byte c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isAlphanumeric(byte c) {
+    return isDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  private static boolean isWhitespace(byte c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+  }
+}
@@ -0,0 +1,263 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.ChangeIndexedListener;
+import com.google.gerrit.extensions.events.RevisionCreatedListener;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.cache.CacheRemovalListener;
+import com.google.gerrit.server.change.RevisionResource;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Computes and caches the order in which the dependency closure of a revision can be enqueued.
+ *
+ * <p>The order only depends on the revision, the visibility of the changes to the caller and the
+ * state of the changes in the closure. Entries are therefore keyed by revision and account, and are
+ * dropped as soon as any change of the closure is reindexed, e.g. because it gets a new patch set,
+ * is abandoned, restored or merged. A new change also drops the entries whose Depends-On footers
+ * refer to it by an unresolved Change-Id, abbreviation or number.
+ *
+ * <p>The cached orders are indexed by the nodes and change numbers they contain, so that an event
+ * only drops the orders it affects instead of scanning the whole cache. Only the few abbreviated
+ * Change-Ids are matched by prefix.
+ */
+@Singleton
+public class GateOrders
+    implements RevisionCreatedListener,
+        ChangeIndexedListener,
+        CacheRemovalListener<GateOrders.Key, GateOrders.GateOrder> {
+  static final String CACHE_NAME = "gate_orders";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, Key.class, GateOrder.class)
+            .maximumWeight(1000)
+            .expireAfterWrite(Duration.ofMinutes(5));
+      }
+    };
+  }
+
+  static class Key {
+    final ObjectId revision;
+    final int accountId;
+
+    Key(ObjectId revision, int accountId) {
+      this.revision = revision.copy();
+      this.accountId = accountId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return revision.equals(other.revision) && accountId == other.accountId;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(revision, accountId);
+    }
+  }
+
+  static class GateOrder {
+    /** The nodes of the graph and the numbers of the changes they were resolved to. */
+    final ImmutableSet<String> refs;
+
+    final GateOrderInfo info;
+
+    GateOrder(ImmutableSet<String> refs, GateOrderInfo info) {
+      this.refs = refs;
+      this.info = info;
+    }
+  }
+
+  private final Cache<Key, GateOrder> cache;
+  private final DependencyGraphBuilder graphBuilder;
+  private final ZuulConfig cfg;
+  private final String pluginName;
+
+  /**
+   * The cached orders by the nodes and change numbers they contain. The inner maps are only
+   * accessed within the atomic updates of their entry, or once the entry was removed.
+   */
+  private final ConcurrentMap<String, Map<Key, GateOrder>> byRef = new ConcurrentHashMap<>();
+  /** Abbreviated Change-Ids that may be nodes of cached orders. */
+  private final Set<String> abbreviated = ConcurrentHashMap.newKeySet();
+
+  @Inject
+  GateOrders(
+      @Named(CACHE_NAME) Cache<Key, GateOrder> cache,
+      DependencyGraphBuilder graphBuilder,
+      ZuulConfig cfg,
+      @PluginName String pluginName) {
+    this.cache = cache;
+    this.graphBuilder = graphBuilder;
+    this.cfg = cfg;
+    this.pluginName = pluginName;
+  }
+
+  public GateOrderInfo get(RevisionResource rsrc)
+      throws RestApiException, IOException, PermissionBackendException {
+    CurrentUser user = rsrc.getUser();
+    Key key =
+        new Key(
+            rsrc.getPatchSet().commitId(), user.isIdentifiedUser() ? user.getAccountId().get() : 0);
+    try {
+      return cache.get(key, () -> compute(key, rsrc)).info;
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), RestApiException.class);
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfInstanceOf(e.getCause(), PermissionBackendException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e);
+    }
+  }
+
+  private GateOrder compute(Key key, RevisionResource rsrc)
+      throws RestApiException, IOException, PermissionBackendException {
+    DependencyGraph graph = graphBuilder.build(rsrc, cfg.getGraphMaxDepth(), cfg.getGraphMaxSize());
+
+    GateOrderInfo info = new GateOrderInfo();
+    info.order = new ArrayList<>();
+    ImmutableSet.Builder<String> refs = ImmutableSet.builder();
+    graph.getChanges().forEach(id -> refs.add(Integer.toString(id)));
+    for (List<String> component : graph.stronglyConnectedComponents()) {
+      GateOrderInfo.Item item = new GateOrderInfo.Item();
+      item.changes = component;
+      item.bundle = graph.isCycle(component);
+      info.order.add(item);
+      refs.addAll(component);
+    }
+    info.truncated = graph.isTruncated();
+    GateOrder order = new GateOrder(refs.build(), info);
+    // Recorded before the order is cached, so that its removal always finds the recorded refs.
+    for (String ref : order.refs) {
+      byRef.compute(
+          ref,
+          (r, orders) -> {
+            Map<Key, GateOrder> result = orders != null ? orders : new HashMap<>();
+            result.put(key, order);
+            return result;
+          });
+      if (DependsOnParser.isAbbreviatedChangeId(ref)) {
+        abbreviated.add(ref);
+      }
+    }
+    return order;
+  }
+
+  @Override
+  public void onRevisionCreated(RevisionCreatedListener.Event event) {
+    invalidate(Change.id(event.getChange()._number), Change.key(event.getChange().changeId));
+  }
+
+  @Override
+  public void onChangeIndexed(String projectName, int id) {
+    invalidate(Change.id(id), null);
+  }
+
+  @Override
+  public void onChangeDeleted(int id) {
+    invalidate(Change.id(id), null);
+  }
+
+  @Override
+  public void onRemoval(
+      String pluginName, String cacheName, RemovalNotification<Key, GateOrder> notification) {
+    if (!this.pluginName.equals(pluginName) || !CACHE_NAME.equals(cacheName)) {
+      return;
+    }
+    Key key = notification.getKey();
+    GateOrder order = notification.getValue();
+    if (key == null || order == null) {
+      return;
+    }
+    for (String ref : order.refs) {
+      byRef.computeIfPresent(
+          ref,
+          (r, orders) -> {
+            orders.remove(key, order);
+            return orders.isEmpty() ? null : orders;
+          });
+    }
+  }
+
+  /**
+   * Drops the orders that contain the change, or refer to it by its number or an abbreviation of
+   * {@code key}.
+   */
+  private void invalidate(Change.Id id, @Nullable Change.Key key) {
+    invalidate(id.toString());
+    if (key == null) {
+      return;
+    }
+    String changeId = key.get();
+    invalidate(changeId);
+    abbreviated.removeIf(
+        ref -> {
+          if (changeId.startsWith(ref)) {
+            invalidate(ref);
+            return true;
+          }
+          // Forget abbreviations whose orders have been evicted in the meantime.
+          return !byRef.containsKey(ref);
+        });
+  }
+
+  /** Drops the orders that contain {@code ref}. */
+  private void invalidate(String ref) {
+    Map<Key, GateOrder> orders = byRef.remove(ref);
+    if (orders != null) {
+      orders.forEach((k, order) -> cache.asMap().remove(k, order));
+    }
+  }
+
+  @VisibleForTesting
+  int indexedRefs() {
+    return byRef.size();
+  }
+}
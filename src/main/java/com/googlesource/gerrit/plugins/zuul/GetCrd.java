@@ -14,82 +14,626 @@
 
 package com.googlesource.gerrit.plugins.zuul;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Comparator.comparing;
+import static java.util.Comparator.naturalOrder;
+import static java.util.Comparator.nullsFirst;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.SetMultimap;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Change;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.client.ListChangesOption;
 import com.google.gerrit.extensions.common.ChangeInfo;
 import com.google.gerrit.extensions.restapi.AuthException;
 import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.CacheControl;
+import com.google.gerrit.extensions.restapi.ETagView;
 import com.google.gerrit.extensions.restapi.Response;
-import com.google.gerrit.extensions.restapi.RestReadView;
-import com.google.gerrit.extensions.restapi.TopLevelResource;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.server.AnonymousUser;
+import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.change.RevisionResource;
 import com.google.gerrit.server.permissions.PermissionBackendException;
-import com.google.gerrit.server.restapi.change.ChangesCollection;
-import com.google.gerrit.server.restapi.change.QueryChanges;
 import com.google.inject.Inject;
-import com.google.inject.Singleton;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.kohsuke.args4j.Option;
 
-@Singleton
-public class GetCrd implements RestReadView<RevisionResource> {
+public class GetCrd implements ETagView<RevisionResource> {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final int CHANGE_ID_LENGTH = 41;
 
-  private final ChangesCollection changes;
+  private final VisibleChanges visibleChanges;
   private final CommitMessageFetcher commitMessageFetcher;
+  private final DependencyIndex dependencyIndex;
+  private final ZuulConfig cfg;
+  private final ExecutorService executor;
+  private final ZuulMetrics metrics;
+  private final InFlightCrdLookups inFlight;
+  private final NegativeLookups negativeLookups;
+
+  private boolean resolve;
+  private int start;
+  private int limit;
+
+  @Option(
+      name = "--resolve",
+      usage = "resolve the Change-Ids to the changes they refer to, in the changes field")
+  public void setResolve(boolean resolve) {
+    this.resolve = resolve;
+  }
+
+  @Option(
+      name = "--start",
+      aliases = {"-S"},
+      metaVar = "CNT",
+      usage = "number of needed by changes to skip")
+  public void setStart(int start) {
+    this.start = start;
+  }
+
+  @Option(
+      name = "--limit",
+      aliases = {"-n"},
+      metaVar = "CNT",
+      usage = "maximum number of needed by changes to return")
+  public void setLimit(int limit) {
+    this.limit = limit;
+  }
 
   @Inject
-  GetCrd(ChangesCollection changes, CommitMessageFetcher commitMessageFetcher) {
-    this.changes = changes;
+  GetCrd(
+      VisibleChanges visibleChanges,
+      CommitMessageFetcher commitMessageFetcher,
+      DependencyIndex dependencyIndex,
+      ZuulConfig cfg,
+      @CrdExecutor ExecutorService executor,
+      ZuulMetrics metrics,
+      InFlightCrdLookups inFlight,
+      NegativeLookups negativeLookups) {
+    this.visibleChanges = visibleChanges;
     this.commitMessageFetcher = commitMessageFetcher;
+    this.dependencyIndex = dependencyIndex;
+    this.cfg = cfg;
+    this.executor = executor;
+    this.metrics = metrics;
+    this.inFlight = inFlight;
+    this.negativeLookups = negativeLookups;
   }
 
   @Override
-  @SuppressWarnings("unchecked")
   public Response<CrdInfo> apply(RevisionResource rsrc)
       throws RepositoryNotFoundException, IOException, BadRequestException, AuthException,
           PermissionBackendException {
-    CrdInfo out = new CrdInfo();
-    out.dependsOn = new ArrayList<>();
-    out.neededBy = new ArrayList<>();
+    CrdInfo out = applyCoalesced(rsrc);
+    if (out.incomplete != null) {
+      return Response.ok(out);
+    }
+    return Response.ok(out).caching(CacheControl.PRIVATE(0, SECONDS).setMustRevalidate());
+  }
+
+  /**
+   * Computes the CRD info of a revision, sharing the result with concurrent requests of the same
+   * caller for the same revision.
+   *
+   * <p>Callers are told apart by account, so that each one only gets results that were computed
+   * with its own permissions. Requests of other non-identified users, e.g. internal users, are not
+   * coalesced.
+   */
+  private CrdInfo applyCoalesced(RevisionResource rsrc)
+      throws RepositoryNotFoundException, IOException, BadRequestException, AuthException,
+          PermissionBackendException {
+    CurrentUser user = rsrc.getUser();
+    if (!user.isIdentifiedUser() && !(user instanceof AnonymousUser)) {
+      return apply(ImmutableList.of(rsrc)).get(0);
+    }
+    InFlightCrdLookups.Key key =
+        new InFlightCrdLookups.Key(
+            rsrc.getPatchSet().commitId(),
+            user.isIdentifiedUser() ? user.getAccountId().get() : 0,
+            resolve,
+            start,
+            neededByLimit());
+    CompletableFuture<CrdInfo> mine = new CompletableFuture<>();
+    CompletableFuture<CrdInfo> theirs = inFlight.join(key, mine);
+    if (theirs != null) {
+      metrics.coalesced.increment();
+      return await(theirs);
+    }
+    try {
+      CrdInfo out = apply(ImmutableList.of(rsrc)).get(0);
+      mine.complete(out);
+      return out;
+    } catch (Throwable t) {
+      mine.completeExceptionally(t);
+      throw t;
+    } finally {
+      inFlight.done(key, mine);
+    }
+  }
+
+  private static CrdInfo await(CompletableFuture<CrdInfo> future)
+      throws RepositoryNotFoundException, IOException, BadRequestException, AuthException,
+          PermissionBackendException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfInstanceOf(e.getCause(), BadRequestException.class);
+      Throwables.throwIfInstanceOf(e.getCause(), AuthException.class);
+      Throwables.throwIfInstanceOf(e.getCause(), PermissionBackendException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Derives an ETag from the revision, the caller and the version of the changes that depend on the
+   * change in the dependency index. Without a complete dependency index, there is no cheap way to
+   * tell whether needed by changes were added, and no ETag is returned.
+   *
+   * <p>Gerrit checks {@code If-None-Match} before it parses the options of the view, so the ETag
+   * must not depend on them: it covers all pages of needed by changes, and always includes the
+   * versions of the depends on changes, whether or not they are resolved. Abbreviated Change-Ids
+   * may match changes of any version, so no ETag is returned for revisions that depend on them.
+   */
+  @Override
+  public String getETag(RevisionResource rsrc) {
+    if (!useDependencyIndex()) {
+      return null;
+    }
+    List<String> dependsOn;
+    try {
+      dependsOn =
+          commitMessageFetcher.fetchDependsOn(
+              rsrc.getChange().getProject(), rsrc.getPatchSet().commitId());
+    } catch (IOException e) {
+      return null;
+    }
+    CurrentUser user = rsrc.getUser();
+    Change.Key key = rsrc.getChange().getKey();
+    Hasher h = Hashing.murmur3_128().newHasher();
+    h.putString(rsrc.getPatchSet().commitId().name(), UTF_8)
+        .putString(key.get(), UTF_8)
+        .putInt(user.isIdentifiedUser() ? user.getAccountId().get() : 0)
+        .putLong(dependencyIndex.getNeededByVersion(key))
+        .putLong(dependencyIndex.getNeededByVersion(rsrc.getChange().getId()));
+    for (String otherId : dependsOn) {
+      if (otherId.length() < CHANGE_ID_LENGTH) {
+        return null;
+      }
+      h.putString(otherId, UTF_8).putLong(dependencyIndex.getChangeVersion(otherId));
+    }
+    return h.hash().toString();
+  }
 
-    Change.Key thisId = rsrc.getChange().getKey();
+  /**
+   * Computes the CRD info of several revisions at once.
+   *
+   * <p>The commit messages of each project are read through a single repository, and with the
+   * dependency index the needed by changes of all revisions are checked in a single query.
+   *
+   * <p>The commit messages are read on the {@link CrdExecutor} while the needed by changes are
+   * queried in the calling thread, which holds the request context the query depends on. If reading
+   * the commit messages does not finish within {@code plugin.zuul.timeout}, the results have no
+   * {@code depends_on} entries and are marked as incomplete.
+   *
+   * <p>When resolving, the depends on changes of all revisions are looked up in a single query.
+   *
+   * <p>The needed by changes are ordered by descending change number and paginated with {@code
+   * --start} and {@code --limit}. Only as many of them are checked for visibility as are needed to
+   * fill the page.
+   */
+  List<CrdInfo> apply(List<RevisionResource> rsrcs)
+      throws RepositoryNotFoundException, IOException, BadRequestException, AuthException,
+          PermissionBackendException {
+    if (start < 0) {
+      throw new BadRequestException("start must not be negative");
+    }
+    if (limit < 0) {
+      throw new BadRequestException("limit must not be negative");
+    }
+    long startTime = System.nanoTime();
 
     // get depends on info
-    Project.NameKey p = rsrc.getChange().getProject();
-    String rev = rsrc.getPatchSet().commitId().getName();
-    String commitMsg = commitMessageFetcher.fetch(p, rev);
-    Pattern pattern = Pattern.compile("[Dd]epends-[Oo]n:? (I[0-9a-f]{8,40})", Pattern.DOTALL);
-    Matcher matcher = pattern.matcher(commitMsg);
-    while (matcher.find()) {
-      String otherId = matcher.group(1);
-      logger.atFinest().log("Change %s depends on change %s", thisId, otherId);
-      out.dependsOn.add(otherId);
+    ListMultimap<Project.NameKey, ObjectId> revsByProject =
+        MultimapBuilder.hashKeys().arrayListValues().build();
+    for (RevisionResource rsrc : rsrcs) {
+      revsByProject.put(rsrc.getChange().getProject(), rsrc.getPatchSet().commitId());
     }
+    Future<Map<ObjectId, ImmutableList<String>>> dependsOnFuture =
+        executor.submit(() -> fetchDependsOn(revsByProject));
 
     // get needed by info
-    QueryChanges query = changes.list();
-    String neededByQuery = "message:" + thisId + " -change:" + thisId;
-    query.addQuery(neededByQuery);
-    Response<List<?>> response = query.apply(TopLevelResource.INSTANCE);
-    List<ChangeInfo> changes = (List<ChangeInfo>) response.value();
-    // check for dependency cycles
-    for (ChangeInfo other : changes) {
-      String otherId = other.changeId;
-      logger.atFinest().log("Change %s needed by %s", thisId, otherId);
-      if (out.dependsOn.contains(otherId)) {
-        logger.atFiner().log(
-            "Detected dependency cycle between changes %s and %s", thisId, otherId);
+    SetMultimap<Change.Key, Change.Id> thisIds =
+        MultimapBuilder.hashKeys().linkedHashSetValues().build();
+    for (RevisionResource rsrc : rsrcs) {
+      thisIds.put(rsrc.getChange().getKey(), rsrc.getChange().getId());
+    }
+    Map<Change.Key, List<ChangeInfo>> neededBy;
+    try (Timer0.Context ctx = metrics.neededByLatency.start()) {
+      neededBy = queryNeededBy(thisIds, queryOptions());
+    } catch (RuntimeException | RestApiException | PermissionBackendException e) {
+      dependsOnFuture.cancel(true);
+      throw e;
+    }
+
+    Map<ObjectId, ImmutableList<String>> dependsOn = await(dependsOnFuture, startTime);
+    if (dependsOn == null) {
+      metrics.incomplete.increment();
+    } else {
+      dependsOn = resolveChangeNumbers(dependsOn);
+    }
+    Map<String, List<CrdChangeInfo>> resolved =
+        resolve && dependsOn != null ? resolveDependsOn(dependsOn.values()) : ImmutableMap.of();
+
+    List<CrdInfo> result = new ArrayList<>(rsrcs.size());
+    for (RevisionResource rsrc : rsrcs) {
+      Change.Key thisId = rsrc.getChange().getKey();
+      CrdInfo out = new CrdInfo();
+      out.dependsOn = new ArrayList<>();
+      out.neededBy = new ArrayList<>();
+      if (resolve) {
+        out.changes = new LinkedHashMap<>();
+      }
+
+      if (dependsOn != null) {
+        for (String otherId : dependsOn.get(rsrc.getPatchSet().commitId())) {
+          logger.atFinest().log("Change %s depends on change %s", thisId, otherId);
+          out.dependsOn.add(otherId);
+          if (resolve && resolved.containsKey(otherId)) {
+            out.changes.put(otherId, resolved.get(otherId));
+          }
+        }
+      } else {
+        out.incomplete = true;
+      }
+      metrics.dependsOnCount.record(out.dependsOn.size());
+
+      // check for dependency cycles
+      List<ChangeInfo> page = neededBy.get(thisId);
+      if (page.size() > neededByLimit()) {
+        page = page.subList(0, neededByLimit());
+        out.moreNeededBy = true;
+      }
+      for (ChangeInfo other : page) {
+        String otherId = other.changeId;
+        logger.atFinest().log("Change %s needed by %s", thisId, otherId);
+        if (out.dependsOn.contains(otherId)) {
+          logger.atFiner().log(
+              "Detected dependency cycle between changes %s and %s", thisId, otherId);
+          out.cycle = true;
+        }
+        out.neededBy.add(otherId);
+      }
+      if (!out.cycle
+          && (start > 0 || out.moreNeededBy != null)
+          && isNeededByAnyOf(thisId, thisIds.get(thisId), out.dependsOn)) {
+        logger.atFiner().log("Detected dependency cycle of change %s on another page", thisId);
         out.cycle = true;
       }
-      out.neededBy.add(otherId);
+      if (resolve) {
+        for (Map.Entry<String, List<ChangeInfo>> e :
+            page.stream()
+                .collect(groupingBy(c -> c.changeId, LinkedHashMap::new, toList()))
+                .entrySet()) {
+          out.changes.putIfAbsent(e.getKey(), toCrdChangeInfos(e.getValue()));
+        }
+      }
+      metrics.neededByCount.record(out.neededBy.size());
+      if (out.cycle) {
+        metrics.cycles.increment();
+      }
+      result.add(out);
+    }
+    return result;
+  }
+
+  private Map<ObjectId, ImmutableList<String>> fetchDependsOn(
+      ListMultimap<Project.NameKey, ObjectId> revsByProject) throws IOException {
+    try (Timer0.Context ctx = metrics.dependsOnLatency.start()) {
+      Map<ObjectId, ImmutableList<String>> dependsOn = new HashMap<>();
+      for (Project.NameKey p : revsByProject.keySet()) {
+        dependsOn.putAll(commitMessageFetcher.fetchAllDependsOn(p, revsByProject.get(p)));
+      }
+      return dependsOn;
     }
+  }
+
+  /** Whether the dependency index is enabled and has been populated with all changes. */
+  private boolean useDependencyIndex() {
+    return cfg.useDependencyIndex() && dependencyIndex.isComplete();
+  }
+
+  /** Returns the page size of needed by changes, or {@code Integer.MAX_VALUE} if unlimited. */
+  private int neededByLimit() {
+    int max = cfg.getNeededByLimit();
+    if (max <= 0) {
+      max = Integer.MAX_VALUE;
+    }
+    return limit > 0 ? Math.min(limit, max) : max;
+  }
+
+  private ListChangesOption[] queryOptions() {
+    return resolve
+        ? new ListChangesOption[] {ListChangesOption.CURRENT_REVISION}
+        : new ListChangesOption[0];
+  }
+
+  /**
+   * Resolves the Change-Ids of Depends-On footers to the visible changes they refer to. A Change-Id
+   * resolves to several changes if it is used on several branches, or if it is abbreviated and
+   * matches several Change-Ids. Change-Ids that do not resolve to any visible change are left out,
+   * and those that were recently found not to refer to any change are not looked up again.
+   */
+  private Map<String, List<CrdChangeInfo>> resolveDependsOn(
+      Collection<ImmutableList<String>> dependsOn)
+      throws BadRequestException, AuthException, PermissionBackendException {
+    Set<String> otherIds = new LinkedHashSet<>();
+    dependsOn.forEach(otherIds::addAll);
+    otherIds.removeIf(negativeLookups::isMissingChange);
+    if (otherIds.isEmpty()) {
+      return ImmutableMap.of();
+    }
+    TreeMap<String, List<ChangeInfo>> byChangeId = new TreeMap<>();
+    for (ChangeInfo info : visibleChanges.byChangeIds(otherIds, queryOptions())) {
+      byChangeId.computeIfAbsent(info.changeId, k -> new ArrayList<>()).add(info);
+    }
+
+    Map<String, List<CrdChangeInfo>> resolved = new HashMap<>();
+    List<String> unresolved = new ArrayList<>();
+    for (String otherId : otherIds) {
+      List<ChangeInfo> matches = new ArrayList<>();
+      // Contains all Change-Ids that start with otherId, i.e. all matches of abbreviations.
+      byChangeId.subMap(otherId, otherId + Character.MAX_VALUE).values().forEach(matches::addAll);
+      if (!matches.isEmpty()) {
+        resolved.put(otherId, toCrdChangeInfos(matches));
+      } else {
+        unresolved.add(otherId);
+      }
+    }
+    negativeLookups.checkMissingChanges(unresolved);
+    return resolved;
+  }
+
+  /** Converts changes to compact records, ordered by project, branch and change number. */
+  private static List<CrdChangeInfo> toCrdChangeInfos(List<ChangeInfo> infos) {
+    Map<Integer, CrdChangeInfo> byNumber = new HashMap<>();
+    for (ChangeInfo info : infos) {
+      CrdChangeInfo out = new CrdChangeInfo();
+      out._number = info._number;
+      out.project = info.project;
+      out.branch = info.branch;
+      out.status = info.status;
+      out.currentRevision = info.currentRevision;
+      byNumber.put(info._number, out);
+    }
+    return byNumber.values().stream()
+        .sorted(
+            comparing((CrdChangeInfo c) -> c.project, nullsFirst(naturalOrder()))
+                .thenComparing(c -> c.branch, nullsFirst(naturalOrder()))
+                .thenComparing(c -> c._number))
+        .collect(toList());
+  }
+
+  /**
+   * Waits for the Depends-On footers until the timeout, counted from {@code start}, elapses.
+   * Returns {@code null} if they are not available in time.
+   */
+  @Nullable
+  private Map<ObjectId, ImmutableList<String>> await(
+      Future<Map<ObjectId, ImmutableList<String>>> future, long start) throws IOException {
+    long timeout = cfg.getTimeout();
+    try {
+      if (timeout <= 0) {
+        return future.get();
+      }
+      long remaining = MILLISECONDS.toNanos(timeout) - (System.nanoTime() - start);
+      return future.get(Math.max(remaining, 0), NANOSECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      logger.atWarning().atMostEvery(1, MINUTES).log(
+          "Reading Depends-On footers did not finish within %d ms", timeout);
+      return null;
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Replaces the change numbers among the Depends-On footers with the Change-Ids of the changes,
+   * which are looked up by their numbers in a single query. Numbers of changes that are not visible
+   * are left as they are.
+   */
+  private Map<ObjectId, ImmutableList<String>> resolveChangeNumbers(
+      Map<ObjectId, ImmutableList<String>> dependsOn)
+      throws BadRequestException, AuthException, PermissionBackendException {
+    Set<Change.Id> numbers = new LinkedHashSet<>();
+    for (List<String> refs : dependsOn.values()) {
+      for (String ref : refs) {
+        if (DependsOnParser.isChangeNumber(ref) && !negativeLookups.isMissingChange(ref)) {
+          numbers.add(Change.id(Integer.parseInt(ref)));
+        }
+      }
+    }
+    if (numbers.isEmpty()) {
+      return dependsOn;
+    }
+    Map<Integer, ChangeInfo> visible = visibleChanges.byNumbers(numbers);
+    negativeLookups.checkMissingChanges(
+        numbers.stream()
+            .filter(n -> !visible.containsKey(n.get()))
+            .map(Change.Id::toString)
+            .collect(toList()));
+    Map<ObjectId, ImmutableList<String>> resolved = new HashMap<>();
+    for (Map.Entry<ObjectId, ImmutableList<String>> e : dependsOn.entrySet()) {
+      resolved.put(
+          e.getKey(),
+          e.getValue().stream()
+              .map(
+                  ref -> {
+                    if (!DependsOnParser.isChangeNumber(ref)) {
+                      return ref;
+                    }
+                    ChangeInfo info = visible.get(Integer.parseInt(ref));
+                    return info != null ? info.changeId : ref;
+                  })
+              .distinct()
+              .collect(toImmutableList()));
+    }
+    return resolved;
+  }
 
-    return Response.ok(out);
+  /**
+   * Finds the changes that depend on each of {@code thisIds} and are visible to the caller. Returns
+   * the page of needed by changes of each Change-Id, followed by the first change of the next page
+   * if there is one.
+   *
+   * <p>With the dependency index the candidates are looked up by Change-Id and by the numbers of
+   * the requested changes, and only their visibility is checked by querying their change numbers,
+   * in rounds until the pages are full. Without it, all commit messages are searched once per
+   * Change-Id, which does not find footers that refer to changes by number or URL.
+   */
+  private Map<Change.Key, List<ChangeInfo>> queryNeededBy(
+      SetMultimap<Change.Key, Change.Id> thisIds, ListChangesOption... options)
+      throws BadRequestException, AuthException, PermissionBackendException {
+    int pageEnd = (int) Math.min((long) start + neededByLimit() + 1, Integer.MAX_VALUE);
+    Map<Change.Key, List<ChangeInfo>> result = new HashMap<>();
+    if (!useDependencyIndex()) {
+      int queryLimit = pageEnd < Integer.MAX_VALUE ? pageEnd - start : 0;
+      for (Change.Key thisId : thisIds.keySet()) {
+        result.put(
+            thisId,
+            visibleChanges.query(
+                "message:" + thisId + " -change:" + thisId, start, queryLimit, options));
+      }
+      return result;
+    }
+
+    Map<Change.Key, List<Change.Id>> candidates = new HashMap<>();
+    Map<Change.Key, List<ChangeInfo>> visible = new HashMap<>();
+    for (Change.Key thisId : thisIds.keySet()) {
+      List<Change.Id> ids = new ArrayList<>(getNeededByCandidates(thisId, thisIds.get(thisId)));
+      ids.sort(comparing(Change.Id::get).reversed());
+      candidates.put(thisId, ids);
+      visible.put(thisId, new ArrayList<>());
+    }
+
+    Map<Change.Key, Integer> checked = new HashMap<>();
+    while (true) {
+      Map<Change.Key, List<Change.Id>> round = new HashMap<>();
+      Set<Change.Id> allCandidates = new LinkedHashSet<>();
+      for (Map.Entry<Change.Key, List<Change.Id>> e : candidates.entrySet()) {
+        List<Change.Id> ids = e.getValue();
+        int from = checked.getOrDefault(e.getKey(), 0);
+        int missing = pageEnd - visible.get(e.getKey()).size();
+        if (missing <= 0 || from >= ids.size()) {
+          continue;
+        }
+        List<Change.Id> next = ids.subList(from, (int) Math.min((long) from + missing, ids.size()));
+        round.put(e.getKey(), next);
+        allCandidates.addAll(next);
+        checked.put(e.getKey(), from + next.size());
+      }
+      if (round.isEmpty()) {
+        break;
+      }
+
+      Map<Integer, ChangeInfo> visibleInRound = visibleChanges.byNumbers(allCandidates, options);
+      for (Map.Entry<Change.Key, List<Change.Id>> e : round.entrySet()) {
+        for (Change.Id id : e.getValue()) {
+          ChangeInfo info = visibleInRound.get(id.get());
+          if (info != null) {
+            visible.get(e.getKey()).add(info);
+          }
+        }
+      }
+    }
+
+    for (Map.Entry<Change.Key, List<ChangeInfo>> e : visible.entrySet()) {
+      List<ChangeInfo> infos = e.getValue();
+      result.put(e.getKey(), infos.subList(Math.min(start, infos.size()), infos.size()));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the changes in the dependency index that depend on {@code thisId} or on any of the
+   * changes {@code numbers}, leaving out changes with the Change-Id {@code thisId} themselves.
+   */
+  private Set<Change.Id> getNeededByCandidates(Change.Key thisId, Set<Change.Id> numbers) {
+    Set<Change.Id> ids = new LinkedHashSet<>(dependencyIndex.getNeededBy(thisId));
+    for (Change.Id number : numbers) {
+      for (Change.Id id : dependencyIndex.getNeededBy(number)) {
+        if (!thisId.equals(dependencyIndex.getKey(id))) {
+          ids.add(id);
+        }
+      }
+    }
+    return ids;
+  }
+
+  /** Whether any of {@code otherIds} is a visible change that depends on {@code thisId}. */
+  private boolean isNeededByAnyOf(Change.Key thisId, Set<Change.Id> numbers, List<String> otherIds)
+      throws BadRequestException, AuthException, PermissionBackendException {
+    if (otherIds.isEmpty()) {
+      return false;
+    }
+    if (!useDependencyIndex()) {
+      String q = otherIds.stream().map(id -> "change:" + id).collect(joining(" OR ", "(", ")"));
+      return !visibleChanges
+          .query("message:" + thisId + " -change:" + thisId + " " + q, 0, 1)
+          .isEmpty();
+    }
+    List<Change.Id> ids = new ArrayList<>();
+    for (Change.Id id : getNeededByCandidates(thisId, numbers)) {
+      Change.Key key = dependencyIndex.getKey(id);
+      if (key != null && otherIds.contains(key.get())) {
+        ids.add(id);
+      }
+    }
+    return !ids.isEmpty() && !visibleChanges.byNumbers(ids).isEmpty();
   }
 }
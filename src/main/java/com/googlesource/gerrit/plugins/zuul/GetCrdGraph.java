@@ -0,0 +1,86 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.Response;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.server.change.RevisionResource;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.inject.Inject;
+import java.io.IOException;
+import java.util.List;
+import org.kohsuke.args4j.Option;
+
+/** Gets the transitive Depends-On graph of a revision. */
+public class GetCrdGraph implements RestReadView<RevisionResource> {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final DependencyGraphBuilder graphBuilder;
+  private final ZuulConfig cfg;
+
+  private int depth;
+  private int limit;
+
+  @Option(name = "--depth", metaVar = "DEPTH", usage = "maximum number of Depends-On hops")
+  public void setDepth(int depth) {
+    this.depth = depth;
+  }
+
+  @Option(
+      name = "--limit",
+      aliases = {"-n"},
+      metaVar = "CNT",
+      usage = "maximum number of changes in the graph")
+  public void setLimit(int limit) {
+    this.limit = limit;
+  }
+
+  @Inject
+  GetCrdGraph(DependencyGraphBuilder graphBuilder, ZuulConfig cfg) {
+    this.graphBuilder = graphBuilder;
+    this.cfg = cfg;
+    this.depth = cfg.getGraphMaxDepth();
+    this.limit = cfg.getGraphMaxSize();
+  }
+
+  @Override
+  public Response<CrdGraphInfo> apply(RevisionResource rsrc)
+      throws IOException, BadRequestException, AuthException, PermissionBackendException {
+    if (depth < 1) {
+      throw new BadRequestException("depth must be positive");
+    }
+    if (limit < 1) {
+      throw new BadRequestException("limit must be positive");
+    }
+    DependencyGraph graph =
+        graphBuilder.build(
+            rsrc, Math.min(depth, cfg.getGraphMaxDepth()), Math.min(limit, cfg.getGraphMaxSize()));
+
+    CrdGraphInfo out = new CrdGraphInfo();
+    out.dependsOn = graph.getEdges();
+    out.components = graph.stronglyConnectedComponents();
+    for (List<String> component : out.components) {
+      if (graph.isCycle(component)) {
+        logger.atFiner().log("Detected dependency cycle between changes %s", component);
+        out.cycle = true;
+      }
+    }
+    out.truncated = graph.isTruncated();
+    return Response.ok(out);
+  }
+}
@@ -0,0 +1,41 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.gerrit.extensions.restapi.Response;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.server.change.RevisionResource;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+
+/** Gets the order in which the dependency closure of a revision can be enqueued. */
+@Singleton
+public class GetGateOrder implements RestReadView<RevisionResource> {
+  private final GateOrders gateOrders;
+
+  @Inject
+  GetGateOrder(GateOrders gateOrders) {
+    this.gateOrders = gateOrders;
+  }
+
+  @Override
+  public Response<GateOrderInfo> apply(RevisionResource rsrc)
+      throws RestApiException, IOException, PermissionBackendException {
+    return Response.ok(gateOrders.get(rsrc));
+  }
+}
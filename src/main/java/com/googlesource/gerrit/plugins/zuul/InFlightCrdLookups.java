@@ -0,0 +1,75 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.inject.Singleton;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.eclipse.jgit.lib.ObjectId;
+
+/** CRD lookups that are currently being computed, so that identical requests can share them. */
+@Singleton
+class InFlightCrdLookups {
+  static class Key {
+    final ObjectId revision;
+    final int accountId;
+    final boolean resolve;
+    final int start;
+    final int limit;
+
+    Key(ObjectId revision, int accountId, boolean resolve, int start, int limit) {
+      this.revision = revision.copy();
+      this.accountId = accountId;
+      this.resolve = resolve;
+      this.start = start;
+      this.limit = limit;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return revision.equals(other.revision)
+          && accountId == other.accountId
+          && resolve == other.resolve
+          && start == other.start
+          && limit == other.limit;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(revision, accountId, resolve, start, limit);
+    }
+  }
+
+  private final ConcurrentMap<Key, CompletableFuture<CrdInfo>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Registers {@code mine} as the lookup for {@code key}. Returns the lookup that is already in
+   * flight for {@code key}, or {@code null} if there is none and the caller has to complete {@code
+   * mine}.
+   */
+  CompletableFuture<CrdInfo> join(Key key, CompletableFuture<CrdInfo> mine) {
+    return inFlight.putIfAbsent(key, mine);
+  }
+
+  void done(Key key, CompletableFuture<CrdInfo> mine) {
+    inFlight.remove(key, mine);
+  }
+}
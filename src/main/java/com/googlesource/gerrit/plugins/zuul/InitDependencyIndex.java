@@ -0,0 +1,184 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Strings;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.pgm.init.api.ConsoleUI;
+import com.google.gerrit.pgm.init.api.InitFlags;
+import com.google.gerrit.pgm.init.api.InitStep;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.inject.Inject;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache.FileKey;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * Populates the Depends-On index of an existing site while it is offline.
+ *
+ * <p>The repositories are found by walking the {@code gerrit.basePath} directory, as the server's
+ * project cache is not available during init.
+ *
+ * <p>The step is skipped once a complete index has been stored in {@code All-Projects} and no
+ * interrupted run is left to resume, so that upgrading a site with {@code init --batch} does not
+ * rescan all repositories again.
+ */
+public class InitDependencyIndex implements InitStep {
+  private final ConsoleUI ui;
+  private final SitePaths site;
+  private final InitFlags flags;
+  private final String pluginName;
+
+  @Inject
+  InitDependencyIndex(
+      ConsoleUI ui, SitePaths site, InitFlags flags, @PluginName String pluginName) {
+    this.ui = ui;
+    this.site = site;
+    this.flags = flags;
+    this.pluginName = pluginName;
+  }
+
+  @Override
+  public void run() throws Exception {
+    ui.header("Zuul Depends-On index");
+    String basePath = flags.cfg.getString("gerrit", null, "basePath");
+    if (flags.isNew || Strings.isNullOrEmpty(basePath)) {
+      return;
+    }
+    Path base = site.resolve(basePath);
+    Path dataDir = site.data_dir.resolve(pluginName);
+    Project.NameKey allProjects =
+        Project.nameKey(
+            MoreObjects.firstNonNull(
+                flags.cfg.getString("gerrit", null, "allProjects"), "All-Projects"));
+    if (isPopulated(base, allProjects, dataDir)) {
+      ui.message("Depends-On index is already populated, use the reindex command to rebuild it\n");
+      return;
+    }
+    if (!ui.yesno(true, "Populate the Depends-On index from the existing changes")) {
+      return;
+    }
+
+    Files.createDirectories(dataDir);
+    DependencyIndex index = new DependencyIndex();
+    PersonIdent serverIdent =
+        new PersonIdent(
+            MoreObjects.firstNonNull(
+                flags.cfg.getString("user", null, "name"), "Gerrit Code Review"),
+            MoreObjects.firstNonNull(
+                flags.cfg.getString("user", null, "email"), "gerrit@localhost"));
+    DependencyIndexStore store =
+        new DependencyIndexStore(
+            index, p -> open(base, p), allProjects, () -> serverIdent, dataDir);
+    store.start();
+
+    PrintWriter out = new PrintWriter(new ConsoleWriter(ui));
+    DependencyReindexer reindexer =
+        new DependencyReindexer(
+            index,
+            store,
+            p -> open(base, p),
+            new DependsOnParser(flags.cfg.getString("gerrit", null, "canonicalWebUrl")),
+            dataDir,
+            out);
+    boolean ok =
+        reindexer.run(listProjects(base), Runtime.getRuntime().availableProcessors(), true);
+    out.flush();
+    if (!ok) {
+      ui.message("Run init again or use the reindex command to retry the failed projects\n");
+    }
+  }
+
+  /** Whether a complete index has been stored and no interrupted reindex is left to resume. */
+  private static boolean isPopulated(Path base, Project.NameKey allProjects, Path dataDir)
+      throws IOException {
+    if (Files.exists(dataDir.resolve(DependencyReindexer.PROGRESS_FILE_NAME))) {
+      return false;
+    }
+    try (Repository repo = open(base, allProjects)) {
+      return DependencyIndexStore.isComplete(repo);
+    } catch (RepositoryNotFoundException e) {
+      return false;
+    }
+  }
+
+  private static List<Project.NameKey> listProjects(Path base) throws IOException {
+    List<Project.NameKey> projects = new ArrayList<>();
+    Files.walkFileTree(
+        base,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            if (dir.equals(base) || !FileKey.isGitRepository(dir.toFile(), FS.DETECTED)) {
+              return FileVisitResult.CONTINUE;
+            }
+            String name = base.relativize(dir).toString().replace('\\', '/');
+            if (name.endsWith(Constants.DOT_GIT_EXT)) {
+              name = name.substring(0, name.length() - Constants.DOT_GIT_EXT.length());
+            }
+            projects.add(Project.nameKey(name));
+            return FileVisitResult.SKIP_SUBTREE;
+          }
+        });
+    return projects;
+  }
+
+  private static Repository open(Path base, Project.NameKey project) throws IOException {
+    return FileKey.lenient(base.resolve(project.get()).toFile(), FS.DETECTED).open(true);
+  }
+
+  /** Forwards the reindexer's progress to the console, which stays quiet in batch mode. */
+  private static class ConsoleWriter extends Writer {
+    private final ConsoleUI ui;
+    private final StringBuilder buf = new StringBuilder();
+
+    ConsoleWriter(ConsoleUI ui) {
+      this.ui = ui;
+    }
+
+    @Override
+    public synchronized void write(char[] cbuf, int off, int len) {
+      buf.append(cbuf, off, len);
+    }
+
+    @Override
+    public synchronized void flush() {
+      if (buf.length() > 0) {
+        ui.message("%s", buf);
+        buf.setLength(0);
+      }
+    }
+
+    @Override
+    public void close() {
+      flush();
+    }
+  }
+}
@@ -0,0 +1,126 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from {@code int} to non-negative {@code int} values, with linear
+ * probing.
+ *
+ * <p>{@link Integer#MIN_VALUE} cannot be used as a key. Not thread-safe.
+ */
+final class IntIntMap {
+  private static final int EMPTY = Integer.MIN_VALUE;
+
+  private int[] keys;
+  private int[] values;
+  private int size;
+
+  IntIntMap() {
+    keys = new int[16];
+    values = new int[16];
+    Arrays.fill(keys, EMPTY);
+  }
+
+  /** Returns the value of {@code key}, or -1 if there is none. */
+  int get(int key) {
+    if (key == EMPTY) {
+      return -1;
+    }
+    int slot = find(key);
+    return keys[slot] == key ? values[slot] : -1;
+  }
+
+  void put(int key, int value) {
+    if (key == EMPTY) {
+      throw new IllegalArgumentException("unsupported key " + key);
+    }
+    int slot = find(key);
+    if (keys[slot] != key) {
+      keys[slot] = key;
+      size++;
+    }
+    values[slot] = value;
+    if (2 * size > keys.length) {
+      rehash(2 * keys.length);
+    }
+  }
+
+  /** Removes {@code key} and returns its value, or -1 if there was none. */
+  int remove(int key) {
+    if (key == EMPTY) {
+      return -1;
+    }
+    int slot = find(key);
+    if (keys[slot] != key) {
+      return -1;
+    }
+    int value = values[slot];
+    int mask = keys.length - 1;
+    for (int next = (slot + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+      int home = hash(keys[next]) & mask;
+      // The entry can fill the gap unless its home slot lies cyclically in (slot, next].
+      boolean between = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+      if (!between) {
+        keys[slot] = keys[next];
+        values[slot] = values[next];
+        slot = next;
+      }
+    }
+    keys[slot] = EMPTY;
+    size--;
+    return value;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Returns an estimate of the heap used by the map, in bytes. */
+  long memoryBytes() {
+    return MemoryEstimate.array(keys.length, Integer.BYTES)
+        + MemoryEstimate.array(values.length, Integer.BYTES);
+  }
+
+  private int find(int key) {
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (keys[slot] != EMPTY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash(int capacity) {
+    int[] oldKeys = keys;
+    int[] oldValues = values;
+    keys = new int[capacity];
+    values = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = find(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,37 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+/**
+ * Sizes of heap objects on a 64 bit JVM with compressed references, for estimates of the memory
+ * held by in-memory data structures.
+ */
+final class MemoryEstimate {
+  static final int REFERENCE = 4;
+  static final int ARRAY_HEADER = 16;
+  /** A {@code String} and the header of its byte array, without the Latin-1 characters. */
+  static final int STRING = 24 + ARRAY_HEADER;
+
+  /** Returns the size of an array of {@code length} elements of {@code elementSize} bytes. */
+  static long array(int length, int elementSize) {
+    return align(ARRAY_HEADER + (long) length * elementSize);
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  private MemoryEstimate() {}
+}
@@ -15,19 +15,56 @@
 package com.googlesource.gerrit.plugins.zuul;
 
 import static com.google.gerrit.server.change.RevisionResource.REVISION_KIND;
+import static com.google.gerrit.server.config.ConfigResource.CONFIG_KIND;
 
+import com.google.gerrit.extensions.events.ChangeIndexedListener;
+import com.google.gerrit.extensions.events.NewProjectCreatedListener;
+import com.google.gerrit.extensions.events.RevisionCreatedListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.extensions.restapi.RestApiModule;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.server.cache.CacheRemovalListener;
+import com.google.gerrit.server.git.validators.CommitValidationListener;
 import com.google.inject.AbstractModule;
+import java.util.concurrent.ExecutorService;
 
 public class Module extends AbstractModule {
 
   @Override
   protected void configure() {
+    install(CommitMessageFetcher.module());
+    install(ChangeDependencies.module());
+    install(GateOrders.module());
+    install(NegativeLookups.module());
+    bind(ExecutorService.class)
+        .annotatedWith(CrdExecutor.class)
+        .toProvider(CrdExecutorProvider.class);
+    bind(DependencyIndexMetrics.class).asEagerSingleton();
+    DynamicSet.bind(binder(), ChangeIndexedListener.class).to(DependencyIndexer.class);
+    DynamicSet.bind(binder(), RevisionCreatedListener.class).to(DependencyIndexer.class);
+    DynamicSet.bind(binder(), RevisionCreatedListener.class).to(GateOrders.class);
+    DynamicSet.bind(binder(), ChangeIndexedListener.class).to(GateOrders.class);
+    DynamicSet.bind(binder(), CacheRemovalListener.class).to(GateOrders.class);
+    DynamicSet.bind(binder(), CommitValidationListener.class).to(CycleValidator.class);
+    DynamicSet.bind(binder(), NewProjectCreatedListener.class).to(NegativeLookups.class);
+    install(
+        new LifecycleModule() {
+          @Override
+          protected void configure() {
+            listener().to(DependencyIndexStore.class);
+            listener().to(CrdExecutorProvider.class);
+            // Stopped before the store, so that the queued changes are stored.
+            listener().to(DependencyIndexQueue.class);
+          }
+        });
     install(
         new RestApiModule() {
           @Override
           protected void configure() {
             get(REVISION_KIND, "crd").to(GetCrd.class);
+            get(REVISION_KIND, "crd_graph").to(GetCrdGraph.class);
+            get(REVISION_KIND, "gate_order").to(GetGateOrder.class);
+            post(CONFIG_KIND, "crd").to(BatchGetCrd.class);
           }
         });
   }
@@ -0,0 +1,183 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.NewProjectCreatedListener;
+import com.google.gerrit.index.query.Predicate;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.ChangeIdPredicate;
+import com.google.gerrit.server.query.change.InternalChangeQuery;
+import com.google.gerrit.server.query.change.LegacyChangeIdPredicate;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+
+/**
+ * Remembers Depends-On references that do not resolve to any change and projects whose repository
+ * does not exist, so that repeated requests do not look them up again.
+ *
+ * <p>Whether a change exists does not depend on the caller, so only references that the index does
+ * not know at all are recorded, not those that merely resolve to changes the caller cannot see.
+ * Entries are dropped when a matching change or project is created, and expire after a minute so
+ * that missed events are not held against a reference for long. Only the few abbreviated Change-Ids
+ * are matched by prefix when a change is created; all other entries are dropped by key.
+ */
+@Singleton
+public class NegativeLookups implements NewProjectCreatedListener {
+  static final String MISSING_CHANGES = "missing_changes";
+  static final String MISSING_PROJECTS = "missing_projects";
+  // Keep the number of terms of a single query well below index.maxTerms.
+  private static final int MAX_REFS_PER_QUERY = 500;
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(MISSING_CHANGES, String.class, Boolean.class)
+            .maximumWeight(10000)
+            .expireAfterWrite(Duration.ofMinutes(1));
+        cache(MISSING_PROJECTS, String.class, Boolean.class)
+            .maximumWeight(1000)
+            .expireAfterWrite(Duration.ofMinutes(1));
+      }
+    };
+  }
+
+  private final Cache<String, Boolean> missingChanges;
+  private final Cache<String, Boolean> missingProjects;
+  private final Provider<InternalChangeQuery> queryProvider;
+  /** Abbreviated Change-Ids that may have been recorded as missing. */
+  private final Set<String> abbreviated = ConcurrentHashMap.newKeySet();
+
+  @Inject
+  NegativeLookups(
+      @Named(MISSING_CHANGES) Cache<String, Boolean> missingChanges,
+      @Named(MISSING_PROJECTS) Cache<String, Boolean> missingProjects,
+      Provider<InternalChangeQuery> queryProvider) {
+    this.missingChanges = missingChanges;
+    this.missingProjects = missingProjects;
+    this.queryProvider = queryProvider;
+  }
+
+  /**
+   * Whether the Change-Id or change number, as returned by {@link DependsOnParser}, was recently
+   * found not to refer to any change.
+   */
+  public boolean isMissingChange(String ref) {
+    return missingChanges.getIfPresent(ref) != null;
+  }
+
+  /**
+   * Records which of {@code refs}, which did not resolve to a visible change, do not refer to any
+   * change at all. The references are looked up with a single query.
+   */
+  public void checkMissingChanges(Collection<String> refs) {
+    for (List<String> partition :
+        Iterables.partition(ImmutableSet.copyOf(refs), MAX_REFS_PER_QUERY)) {
+      Set<String> numbers = new HashSet<>();
+      TreeSet<String> changeIds = new TreeSet<>();
+      for (ChangeData cd : query(partition)) {
+        numbers.add(cd.getId().toString());
+        Change change = cd.change();
+        if (change != null) {
+          changeIds.add(change.getKey().get());
+        }
+      }
+      for (String ref : partition) {
+        boolean found;
+        if (DependsOnParser.isChangeNumber(ref)) {
+          found = numbers.contains(ref);
+        } else {
+          // The smallest Change-Id that is not less than ref starts with it, if any does.
+          String changeId = changeIds.ceiling(ref);
+          found = changeId != null && changeId.startsWith(ref);
+        }
+        if (!found) {
+          putMissingChange(ref);
+        }
+      }
+    }
+  }
+
+  /** Queries the changes that any of {@code refs} refer to, regardless of their visibility. */
+  @VisibleForTesting
+  List<ChangeData> query(List<String> refs) {
+    List<Predicate<ChangeData>> predicates = new ArrayList<>(refs.size());
+    for (String ref : refs) {
+      predicates.add(
+          DependsOnParser.isChangeNumber(ref)
+              ? new LegacyChangeIdPredicate(Change.id(Integer.parseInt(ref)))
+              : new ChangeIdPredicate(ref));
+    }
+    return queryProvider.get().query(Predicate.or(predicates));
+  }
+
+  public void putMissingChange(String ref) {
+    missingChanges.put(ref, true);
+    if (DependsOnParser.isAbbreviatedChangeId(ref)) {
+      abbreviated.add(ref);
+    }
+  }
+
+  /** Drops the references that may resolve to the change, including abbreviated Change-Ids. */
+  public void onChangeCreated(Change.Id id, Change.Key key) {
+    String changeId = key.get();
+    missingChanges.invalidate(id.toString());
+    missingChanges.invalidate(changeId);
+    abbreviated.removeIf(
+        ref -> {
+          if (changeId.startsWith(ref)) {
+            missingChanges.invalidate(ref);
+            return true;
+          }
+          // Forget abbreviations that have expired in the meantime.
+          return missingChanges.getIfPresent(ref) == null;
+        });
+  }
+
+  /** Throws if the repository of {@code project} was recently found not to exist. */
+  public void checkProject(Project.NameKey project) throws RepositoryNotFoundException {
+    if (missingProjects.getIfPresent(project.get()) != null) {
+      throw new RepositoryNotFoundException(project.get());
+    }
+  }
+
+  public void putMissingProject(Project.NameKey project) {
+    missingProjects.put(project.get(), true);
+  }
+
+  @Override
+  public void onNewProjectCreated(NewProjectCreatedListener.Event event) {
+    missingProjects.invalidate(event.getProjectName());
+  }
+}
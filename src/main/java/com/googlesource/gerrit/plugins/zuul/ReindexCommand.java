@@ -0,0 +1,53 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.PluginData;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import java.nio.file.Path;
+import org.kohsuke.args4j.Option;
+
+/** Rebuilds the Depends-On index from the changes of all projects. */
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+@CommandMetaData(name = "reindex", description = "Rebuild the Depends-On index of all changes")
+public class ReindexCommand extends SshCommand {
+  @Option(name = "--threads", metaVar = "CNT", usage = "number of projects to scan in parallel")
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  @Option(name = "--force", usage = "start over instead of resuming an interrupted reindex")
+  private boolean force;
+
+  @Inject private GitRepositoryManager repoManager;
+  @Inject private ProjectCache projectCache;
+  @Inject private DependencyIndex index;
+  @Inject private DependencyIndexStore store;
+  @Inject private DependsOnParser parser;
+  @Inject @PluginData private Path dataDir;
+
+  @Override
+  protected void run() throws UnloggedFailure, Exception {
+    DependencyReindexer reindexer =
+        new DependencyReindexer(index, store, repoManager::openRepository, parser, dataDir, stdout);
+    if (!reindexer.run(projectCache.all(), threads, !force)) {
+      throw die("reindex incomplete, run it again to retry the failed projects");
+    }
+  }
+}
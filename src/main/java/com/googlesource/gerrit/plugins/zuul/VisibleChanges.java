@@ -0,0 +1,107 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static java.util.stream.Collectors.joining;
+
+import com.google.common.collect.Iterables;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.extensions.client.ListChangesOption;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.Response;
+import com.google.gerrit.extensions.restapi.TopLevelResource;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.restapi.change.ChangesCollection;
+import com.google.gerrit.server.restapi.change.QueryChanges;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Queries changes on behalf of the calling user, so that only visible changes are returned. */
+@Singleton
+public class VisibleChanges {
+  // Keep the number of terms of a single query well below index.maxTerms.
+  private static final int MAX_CHANGES_PER_QUERY = 500;
+
+  private final ChangesCollection changes;
+
+  @Inject
+  VisibleChanges(ChangesCollection changes) {
+    this.changes = changes;
+  }
+
+  /** Returns the changes of {@code ids} that are visible to the caller, by change number. */
+  public Map<Integer, ChangeInfo> byNumbers(Collection<Change.Id> ids, ListChangesOption... options)
+      throws BadRequestException, AuthException, PermissionBackendException {
+    Map<Integer, ChangeInfo> visible = new HashMap<>();
+    for (List<Change.Id> partition : Iterables.partition(ids, MAX_CHANGES_PER_QUERY)) {
+      String q = partition.stream().map(id -> "change:" + id.get()).collect(joining(" OR "));
+      for (ChangeInfo info : query(q, options)) {
+        visible.put(info._number, info);
+      }
+    }
+    return visible;
+  }
+
+  /**
+   * Returns the changes that are visible to the caller and whose Change-Id is one of {@code
+   * changeIds}, or starts with one of them.
+   */
+  public List<ChangeInfo> byChangeIds(Collection<String> changeIds, ListChangesOption... options)
+      throws BadRequestException, AuthException, PermissionBackendException {
+    List<ChangeInfo> visible = new ArrayList<>();
+    for (List<String> partition : Iterables.partition(changeIds, MAX_CHANGES_PER_QUERY)) {
+      visible.addAll(
+          query(partition.stream().map(id -> "change:" + id).collect(joining(" OR ")), options));
+    }
+    return visible;
+  }
+
+  public List<ChangeInfo> query(String q, ListChangesOption... options)
+      throws BadRequestException, AuthException, PermissionBackendException {
+    return query(q, 0, 0, options);
+  }
+
+  /**
+   * Queries changes, skipping the first {@code start} results and returning at most {@code limit}
+   * of them, or as many as the caller's query limit allows if {@code limit} is 0.
+   *
+   * <p>Only the fields that are cheap to compute are requested, along with {@code options}.
+   */
+  @SuppressWarnings("unchecked")
+  public List<ChangeInfo> query(String q, int start, int limit, ListChangesOption... options)
+      throws BadRequestException, AuthException, PermissionBackendException {
+    QueryChanges query = changes.list();
+    query.addQuery(q);
+    if (start > 0) {
+      query.setStart(start);
+    }
+    if (limit > 0) {
+      query.setLimit(limit);
+    }
+    query.addOption(ListChangesOption.SKIP_DIFFSTAT);
+    for (ListChangesOption option : options) {
+      query.addOption(option);
+    }
+    Response<List<?>> response = query.apply(TopLevelResource.INSTANCE);
+    return (List<ChangeInfo>) response.value();
+  }
+}
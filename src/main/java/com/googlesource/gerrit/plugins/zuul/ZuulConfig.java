@@ -0,0 +1,86 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/** The {@code plugin.zuul} section of {@code gerrit.config}. */
+@Singleton
+public class ZuulConfig {
+  private final PluginConfig cfg;
+
+  @Inject
+  ZuulConfig(PluginConfigFactory cfgFactory, @PluginName String pluginName) {
+    this.cfg = cfgFactory.getFromGerritConfig(pluginName);
+  }
+
+  public boolean useDependencyIndex() {
+    return cfg.getBoolean("dependencyIndex", true);
+  }
+
+  public int getMaxBatchSize() {
+    return cfg.getInt("maxBatchSize", 500);
+  }
+
+  public int getNeededByLimit() {
+    return cfg.getInt("neededByLimit", 500);
+  }
+
+  public int getGraphMaxDepth() {
+    return cfg.getInt("graphMaxDepth", 10);
+  }
+
+  public int getGraphMaxSize() {
+    return cfg.getInt("graphMaxSize", 1000);
+  }
+
+  public int getThreads() {
+    return cfg.getInt("threads", 4);
+  }
+
+  public CycleValidator.Action getCycleCheck() {
+    return cfg.getEnum("cycleCheck", CycleValidator.Action.OFF);
+  }
+
+  public int getPrecomputeQueueSize() {
+    return cfg.getInt("precomputeQueueSize", 10000);
+  }
+
+  public int getPrecomputeBatchSize() {
+    return cfg.getInt("precomputeBatchSize", 100);
+  }
+
+  /** Returns the timeout of a CRD lookup in milliseconds, or 0 if it never times out. */
+  public long getTimeout() {
+    String timeout = cfg.getString("timeout");
+    return timeout != null ? ConfigUtil.getTimeUnit(timeout, 10000, MILLISECONDS) : 10000;
+  }
+
+  /**
+   * Returns the interval at which the dependency index is synchronized with the stored index in
+   * milliseconds, or 0 if it is only synchronized when the plugin starts and stops.
+   */
+  public long getIndexSyncInterval() {
+    String interval = cfg.getString("indexSyncInterval");
+    return interval != null ? ConfigUtil.getTimeUnit(interval, 5000, MILLISECONDS) : 5000;
+  }
+}
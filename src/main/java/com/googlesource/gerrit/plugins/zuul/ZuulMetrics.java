@@ -0,0 +1,102 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Histogram0;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Metrics of CRD lookups.
+ *
+ * <p>Hit ratios of the plugin's caches are not recorded here, as Gerrit already reports them for
+ * all caches in its {@code caches/*} metrics.
+ */
+@Singleton
+public class ZuulMetrics {
+  final Timer0 readCommitLatency;
+  final Timer0 parseLatency;
+  final Timer0 dependsOnLatency;
+  final Timer0 neededByLatency;
+  final Histogram0 dependsOnCount;
+  final Histogram0 neededByCount;
+  final Counter0 cycles;
+  final Counter0 incomplete;
+  final Counter0 coalesced;
+
+  @Inject
+  ZuulMetrics(MetricMaker metricMaker) {
+    readCommitLatency =
+        metricMaker.newTimer(
+            "depends_on/read_commit_latency",
+            new Description("Latency of reading a commit object from the repository")
+                .setCumulative()
+                .setUnit(Units.MICROSECONDS));
+    parseLatency =
+        metricMaker.newTimer(
+            "depends_on/parse_latency",
+            new Description("Latency of extracting the Depends-On footers of a commit")
+                .setCumulative()
+                .setUnit(Units.MICROSECONDS));
+    dependsOnLatency =
+        metricMaker.newTimer(
+            "crd/depends_on_latency",
+            new Description("Latency of looking up the depends_on changes of a CRD request")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+    neededByLatency =
+        metricMaker.newTimer(
+            "crd/needed_by_latency",
+            new Description("Latency of querying the needed_by changes of a CRD request")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+    dependsOnCount =
+        metricMaker.newHistogram(
+            "crd/depends_on_count",
+            new Description("Number of depends_on changes per revision")
+                .setCumulative()
+                .setUnit("changes"));
+    neededByCount =
+        metricMaker.newHistogram(
+            "crd/needed_by_count",
+            new Description("Number of needed_by changes per revision")
+                .setCumulative()
+                .setUnit("changes"));
+    cycles =
+        metricMaker.newCounter(
+            "crd/cycles",
+            new Description("Number of revisions found to be in a dependency cycle")
+                .setRate()
+                .setUnit("revisions"));
+    incomplete =
+        metricMaker.newCounter(
+            "crd/incomplete",
+            new Description("Number of CRD requests whose depends_on lookup timed out")
+                .setRate()
+                .setUnit("requests"));
+    coalesced =
+        metricMaker.newCounter(
+            "crd/coalesced",
+            new Description(
+                    "Number of CRD requests that shared the result of a concurrent identical request")
+                .setRate()
+                .setUnit("requests"));
+  }
+}
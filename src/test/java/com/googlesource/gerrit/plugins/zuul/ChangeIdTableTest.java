@@ -0,0 +1,103 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public class ChangeIdTableTest {
+  private static final String CHANGE_ID = "I0123456789abcdef0123456789abcdef01234567";
+
+  @Test
+  public void testRoundTrip() {
+    ChangeIdTable table = new ChangeIdTable();
+    List<String> values =
+        List.of(
+            CHANGE_ID,
+            "Iffffffffffffffffffffffffffffffffffffffff",
+            "I0000000000000000000000000000000000000000",
+            "I0123456789ABCDEF0123456789ABCDEF01234567",
+            "I012345678",
+            "12345");
+    for (String value : values) {
+      assertThat(table.toString(table.acquire(value))).isEqualTo(value);
+    }
+    assertThat(table.size()).isEqualTo(values.size());
+  }
+
+  @Test
+  public void testAcquireReturnsSameId() {
+    ChangeIdTable table = new ChangeIdTable();
+    int id = table.acquire(CHANGE_ID);
+
+    assertThat(table.acquire(CHANGE_ID)).isEqualTo(id);
+    assertThat(table.get(CHANGE_ID)).isEqualTo(id);
+    assertThat(table.get("I0123456789")).isEqualTo(-1);
+  }
+
+  @Test
+  public void testReleaseAfterLastReference() {
+    ChangeIdTable table = new ChangeIdTable();
+    int id = table.acquire(CHANGE_ID);
+    table.acquire(CHANGE_ID);
+
+    table.release(id);
+    assertThat(table.get(CHANGE_ID)).isEqualTo(id);
+    table.release(id);
+    assertThat(table.get(CHANGE_ID)).isEqualTo(-1);
+    assertThat(table.acquire("I012345678")).isEqualTo(id);
+  }
+
+  @Test
+  public void testRandomOperations() {
+    ChangeIdTable table = new ChangeIdTable();
+    Map<String, Integer> refs = new HashMap<>();
+    List<String> keys = new ArrayList<>();
+    Random random = new Random(0);
+    for (int i = 0; i < 2000; i++) {
+      keys.add(
+          random.nextBoolean()
+              ? String.format("I%016x%016x%08x", random.nextLong(), random.nextLong(), i)
+              : Integer.toString(i));
+    }
+    for (int i = 0; i < 20000; i++) {
+      String key = keys.get(random.nextInt(keys.size()));
+      if (refs.containsKey(key) && random.nextBoolean()) {
+        table.release(table.get(key));
+        refs.merge(key, -1, Integer::sum);
+        refs.remove(key, 0);
+      } else {
+        table.acquire(key);
+        refs.merge(key, 1, Integer::sum);
+      }
+    }
+
+    assertThat(table.size()).isEqualTo(refs.size());
+    for (String key : keys) {
+      int id = table.get(key);
+      if (refs.containsKey(key)) {
+        assertThat(table.toString(id)).isEqualTo(key);
+      } else {
+        assertThat(id).isEqualTo(-1);
+      }
+    }
+  }
+}
@@ -18,15 +18,23 @@ import static com.google.gerrit.testing.GerritJUnit.assertThrows;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.metrics.DisabledMetricMaker;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
@@ -36,11 +44,16 @@ import org.junit.Before;
 import org.junit.Test;
 
 public class CommitMessageFetcherTest {
+  private static final DependsOnParser PARSER = new DependsOnParser(null);
+  private static final ZuulMetrics METRICS = new ZuulMetrics(new DisabledMetricMaker());
+
   private GitRepositoryManager repoManager;
+  private NegativeLookups negativeLookups;
   private Repository repo;
   private String objectIdBlob = "24c5735c3e8ce8fd18d312e9e58149a62236c01a";
   private String objectIdTree = "3faaefce19558dfc8d9c976f09ae4897f45cb242";
   private String objectIdCommit = "95aed53c03b6d3df0912bdd9bb1d0c6eaf619f58";
+  private String objectIdCommitDependsOn = "b8c5cbf7ac2e4ec1d0f1ecd6cba8d3e8e1f1d9a0";
   private String objectIdMissing = "0123456789012345678901234567890123456789";
 
   private byte rawBlob[] = "def\n".getBytes();
@@ -52,6 +65,16 @@ public class CommitMessageFetcherTest {
               + "\n"
               + "CommitMsg\n")
           .getBytes();
+  private byte rawCommitDependsOn[] =
+      ("tree\0003faaefce19558dfc8d9c976f09ae4897f45cb242\n"
+              + "author Author <author@example.org> 1592579853 +0200\n"
+              + "committer Committer <committer@example.org> 1592579853 +0200\n"
+              + "\n"
+              + "Subject\n"
+              + "\n"
+              + "Depends-On: I0123456789abcdef\n"
+              + "Depends-On: Iabcdef0123456789\n")
+          .getBytes();
 
   private static byte[] sha1append(String left, String sha1sum) {
     int leftLen = left.length();
@@ -63,25 +86,125 @@ public class CommitMessageFetcherTest {
   }
 
   @Test
-  public void testFetchBlob() {
+  public void testFetchDependsOnTree() {
+    CommitMessageFetcher fetcher = createCommitMessageFetcher();
+    assertThrows(
+        IOException.class,
+        () ->
+            fetcher.fetchDependsOn(
+                Project.nameKey("ProjectFoo"), ObjectId.fromString(objectIdTree)));
+  }
+
+  @Test
+  public void testFetchDependsOnWithoutFooters() throws IOException {
+    CommitMessageFetcher fetcher = createCommitMessageFetcher();
+    List<String> dependsOn =
+        fetcher.fetchDependsOn(Project.nameKey("ProjectFoo"), ObjectId.fromString(objectIdCommit));
+
+    assertThat(dependsOn).isEmpty();
+  }
+
+  @Test
+  public void testFetchDependsOnBlob() {
     CommitMessageFetcher fetcher = createCommitMessageFetcher();
     assertThrows(
-        IOException.class, () -> fetcher.fetch(Project.nameKey("ProjectFoo"), objectIdBlob));
+        IOException.class,
+        () ->
+            fetcher.fetchDependsOn(
+                Project.nameKey("ProjectFoo"), ObjectId.fromString(objectIdBlob)));
   }
 
   @Test
-  public void testFetchTree() {
+  public void testFetchDependsOnMissing() {
     CommitMessageFetcher fetcher = createCommitMessageFetcher();
     assertThrows(
-        IOException.class, () -> fetcher.fetch(Project.nameKey("ProjectFoo"), objectIdTree));
+        IOException.class,
+        () ->
+            fetcher.fetchDependsOn(
+                Project.nameKey("ProjectFoo"), ObjectId.fromString(objectIdMissing)));
+  }
+
+  @Test
+  public void testFetchDependsOn() throws IOException {
+    CommitMessageFetcher fetcher = createCommitMessageFetcher();
+    List<String> dependsOn =
+        fetcher.fetchDependsOn(
+            Project.nameKey("ProjectFoo"), ObjectId.fromString(objectIdCommitDependsOn));
+
+    assertThat(dependsOn).containsExactly("I0123456789abcdef", "Iabcdef0123456789").inOrder();
   }
 
   @Test
-  public void testFetchCommit() throws IOException {
+  public void testFetchDependsOnIsCached() throws IOException {
     CommitMessageFetcher fetcher = createCommitMessageFetcher();
-    String commitMessage = fetcher.fetch(Project.nameKey("ProjectFoo"), objectIdCommit);
+    fetcher.fetchDependsOn(
+        Project.nameKey("ProjectFoo"), ObjectId.fromString(objectIdCommitDependsOn));
+    List<String> dependsOn =
+        fetcher.fetchDependsOn(
+            Project.nameKey("ProjectFoo"), ObjectId.fromString(objectIdCommitDependsOn));
 
-    assertThat(commitMessage).isEqualTo("CommitMsg\n");
+    assertThat(dependsOn).containsExactly("I0123456789abcdef", "Iabcdef0123456789").inOrder();
+    verify(repoManager, times(1)).openRepository(Project.nameKey("ProjectFoo"));
+  }
+
+  @Test
+  public void testFetchAllDependsOn() throws IOException {
+    CommitMessageFetcher fetcher = createCommitMessageFetcher();
+    Map<ObjectId, ImmutableList<String>> dependsOn =
+        fetcher.fetchAllDependsOn(
+            Project.nameKey("ProjectFoo"),
+            ImmutableList.of(
+                ObjectId.fromString(objectIdCommit), ObjectId.fromString(objectIdCommitDependsOn)));
+
+    assertThat(dependsOn)
+        .containsExactly(
+            ObjectId.fromString(objectIdCommit),
+            ImmutableList.of(),
+            ObjectId.fromString(objectIdCommitDependsOn),
+            ImmutableList.of("I0123456789abcdef", "Iabcdef0123456789"));
+    assertThat(
+            fetcher.fetchDependsOn(
+                Project.nameKey("ProjectFoo"), ObjectId.fromString(objectIdCommitDependsOn)))
+        .containsExactly("I0123456789abcdef", "Iabcdef0123456789");
+    verify(repoManager, times(1)).openRepository(Project.nameKey("ProjectFoo"));
+  }
+
+  @Test
+  public void testKeySerializer() {
+    CommitMessageFetcher.Key key =
+        new CommitMessageFetcher.Key(
+            Project.nameKey("ProjectFoo"), ObjectId.fromString(objectIdCommit));
+    byte[] serialized = CommitMessageFetcher.Key.Serializer.INSTANCE.serialize(key);
+
+    assertThat(CommitMessageFetcher.Key.Serializer.INSTANCE.deserialize(serialized)).isEqualTo(key);
+  }
+
+  @Test
+  public void testDependsOnSerializer() {
+    CommitMessageFetcher.DependsOnSerializer serializer =
+        CommitMessageFetcher.DependsOnSerializer.INSTANCE;
+
+    assertThat(serializer.deserialize(serializer.serialize(ImmutableList.of()))).isEmpty();
+    assertThat(
+            serializer.deserialize(
+                serializer.serialize(ImmutableList.of("I0123456789abcdef", "Iabcdef0123456789"))))
+        .containsExactly("I0123456789abcdef", "Iabcdef0123456789")
+        .inOrder();
+  }
+
+  @Test
+  public void testMissingRepositoryIsRemembered() throws Exception {
+    CommitMessageFetcher fetcher = createCommitMessageFetcher();
+    Project.NameKey deleted = Project.nameKey("Deleted");
+    ObjectId id = ObjectId.fromString(objectIdCommit);
+
+    assertThrows(RepositoryNotFoundException.class, () -> fetcher.fetchDependsOn(deleted, id));
+    assertThrows(RepositoryNotFoundException.class, () -> fetcher.fetchDependsOn(deleted, id));
+    assertThrows(
+        RepositoryNotFoundException.class,
+        () -> fetcher.fetchAllDependsOn(deleted, ImmutableList.of(id, id.copy())));
+
+    verify(repoManager, times(1)).openRepository(deleted);
   }
 
   @Before
@@ -98,6 +221,10 @@ public class CommitMessageFetcherTest {
     when(objectLoaderCommit.getCachedBytes(anyInt())).thenReturn(rawCommit);
     when(objectLoaderCommit.getType()).thenReturn(Constants.OBJ_COMMIT);
 
+    ObjectLoader objectLoaderCommitDependsOn = mock(ObjectLoader.class);
+    when(objectLoaderCommitDependsOn.getCachedBytes(anyInt())).thenReturn(rawCommitDependsOn);
+    when(objectLoaderCommitDependsOn.getType()).thenReturn(Constants.OBJ_COMMIT);
+
     Set<ObjectId> shallowCommits = new HashSet<>();
     shallowCommits.add(ObjectId.fromString(objectIdCommit));
 
@@ -106,6 +233,8 @@ public class CommitMessageFetcherTest {
     when(objectReader.open(ObjectId.fromString(objectIdBlob))).thenReturn(objectLoaderBlob);
     when(objectReader.open(ObjectId.fromString(objectIdTree))).thenReturn(objectLoaderTree);
     when(objectReader.open(ObjectId.fromString(objectIdCommit))).thenReturn(objectLoaderCommit);
+    when(objectReader.open(ObjectId.fromString(objectIdCommitDependsOn)))
+        .thenReturn(objectLoaderCommitDependsOn);
     when(objectReader.open(ObjectId.fromString(objectIdMissing)))
         .thenThrow(
             new MissingObjectException(ObjectId.fromString(objectIdMissing), Constants.OBJ_COMMIT));
@@ -115,9 +244,21 @@ public class CommitMessageFetcherTest {
 
     repoManager = mock(GitRepositoryManager.class);
     when(repoManager.openRepository(eq(Project.nameKey("ProjectFoo")))).thenReturn(repo);
+    when(repoManager.openRepository(eq(Project.nameKey("Deleted"))))
+        .thenThrow(new RepositoryNotFoundException("Deleted"));
+
+    negativeLookups =
+        new NegativeLookups(
+            CacheBuilder.newBuilder().build(), CacheBuilder.newBuilder().build(), () -> null);
   }
 
   private CommitMessageFetcher createCommitMessageFetcher() {
-    return new CommitMessageFetcher(repoManager);
+    return new CommitMessageFetcher(
+        repoManager,
+        CacheBuilder.newBuilder()
+            .build(new CommitMessageFetcher.Loader(repoManager, METRICS, PARSER)),
+        METRICS,
+        PARSER,
+        negativeLookups);
   }
 }
@@ -0,0 +1,64 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.util.IdGenerator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CrdExecutorProviderTest {
+  private WorkQueue workQueue;
+  private ZuulConfig cfg;
+
+  @Before
+  public void setUp() {
+    workQueue = new WorkQueue(mock(IdGenerator.class), 1, new DisabledMetricMaker());
+    PluginConfigFactory cfgFactory = mock(PluginConfigFactory.class);
+    when(cfgFactory.getFromGerritConfig("zuul"))
+        .thenReturn(PluginConfig.createFromGerritConfig("zuul", new Config()));
+    cfg = new ZuulConfig(cfgFactory, "zuul");
+  }
+
+  @Test
+  public void testSubmitCallableToWorkQueue() throws Exception {
+    CrdExecutorProvider provider = new CrdExecutorProvider(workQueue, cfg);
+    try {
+      ExecutorService executor = provider.get();
+      Future<String> future = executor.submit(() -> "done");
+
+      assertThat(future.get(10, SECONDS)).isEqualTo("done");
+    } finally {
+      provider.stop();
+    }
+  }
+
+  @Test
+  public void testDefaultTimeout() {
+    assertThat(cfg.getTimeout()).isEqualTo(10000);
+    assertThat(cfg.getThreads()).isEqualTo(4);
+  }
+}
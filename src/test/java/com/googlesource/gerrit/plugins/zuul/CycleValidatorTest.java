@@ -0,0 +1,108 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.server.events.CommitReceivedEvent;
+import com.google.gerrit.server.git.validators.CommitValidationException;
+import com.google.gerrit.server.git.validators.CommitValidationMessage;
+import com.google.gerrit.server.git.validators.ValidationMessage;
+import java.util.List;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CycleValidatorTest {
+  private static final String CHANGE_ID = "I0000000000000000000000000000000000000001";
+  private static final String OTHER_ID = "I0000000000000000000000000000000000000002";
+
+  private DependencyIndex index;
+  private ZuulConfig cfg;
+
+  @Before
+  public void setUp() {
+    index = new DependencyIndex();
+    index.update(Change.id(2), Change.key(OTHER_ID), ImmutableList.of(CHANGE_ID));
+    index.setComplete();
+    cfg = mock(ZuulConfig.class);
+    when(cfg.useDependencyIndex()).thenReturn(true);
+    when(cfg.getGraphMaxSize()).thenReturn(1000);
+  }
+
+  @Test
+  public void testOffByDefault() throws Exception {
+    when(cfg.getCycleCheck()).thenReturn(CycleValidator.Action.OFF);
+
+    assertThat(validate("Depends-On: " + OTHER_ID)).isEmpty();
+  }
+
+  @Test
+  public void testWarn() throws Exception {
+    when(cfg.getCycleCheck()).thenReturn(CycleValidator.Action.WARN);
+
+    List<CommitValidationMessage> messages = validate("Depends-On: " + OTHER_ID);
+
+    assertThat(messages).hasSize(1);
+    assertThat(messages.get(0).getType()).isEqualTo(ValidationMessage.Type.WARNING);
+    assertThat(messages.get(0).getMessage())
+        .contains(CHANGE_ID + " -> " + OTHER_ID + " -> " + CHANGE_ID);
+  }
+
+  @Test
+  public void testReject() throws Exception {
+    when(cfg.getCycleCheck()).thenReturn(CycleValidator.Action.REJECT);
+
+    assertThrows(CommitValidationException.class, () -> validate("Depends-On: " + OTHER_ID));
+  }
+
+  @Test
+  public void testNoCycle() throws Exception {
+    when(cfg.getCycleCheck()).thenReturn(CycleValidator.Action.REJECT);
+
+    assertThat(validate("Depends-On: I0000000000000000000000000000000000000003")).isEmpty();
+    assertThat(validate("")).isEmpty();
+  }
+
+  @Test
+  public void testSkippedUntilIndexIsComplete() throws Exception {
+    when(cfg.getCycleCheck()).thenReturn(CycleValidator.Action.REJECT);
+    index = new DependencyIndex();
+    index.update(Change.id(2), Change.key(OTHER_ID), ImmutableList.of(CHANGE_ID));
+
+    assertThat(validate("Depends-On: " + OTHER_ID)).isEmpty();
+  }
+
+  private List<CommitValidationMessage> validate(String footers) throws Exception {
+    String raw =
+        "tree 4b825dc642cb6eb9a060e54bf8d69288fbee4904\n"
+            + "author A <a@example.com> 0 +0000\n"
+            + "committer A <a@example.com> 0 +0000\n"
+            + "\n"
+            + "Subject\n\n"
+            + footers
+            + "\nChange-Id: "
+            + CHANGE_ID
+            + "\n";
+    CommitReceivedEvent event = new CommitReceivedEvent();
+    event.commit = RevCommit.parse(raw.getBytes(UTF_8));
+    return new CycleValidator(index, cfg, new DependsOnParser(null)).onCommitReceived(event);
+  }
+}
@@ -0,0 +1,238 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.PatchSet;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.server.change.RevisionResource;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DependencyGraphBuilderTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("project");
+  private static final ObjectId REVISION =
+      ObjectId.fromString("0123456789012345678901234567890123456789");
+  private static final String ROOT = "I0000000000000000000000000000000000000001";
+  private static final String A = "Iaaaaaaaa00000000000000000000000000000002";
+  private static final String B = "Ibbbbbbbb00000000000000000000000000000003";
+  private static final String C = "Icccccccc00000000000000000000000000000004";
+
+  private final Map<String, ImmutableList<ChangeDependencies.Node>> changes = new HashMap<>();
+  private final Map<String, Integer> loads = new HashMap<>();
+  private final Set<Integer> visible = new HashSet<>();
+
+  private CommitMessageFetcher commitMessageFetcher;
+  private ChangeDependencies changeDependencies;
+  private DependencyGraphBuilder builder;
+  private RevisionResource rsrc;
+
+  @Before
+  public void setUp() throws Exception {
+    commitMessageFetcher = mock(CommitMessageFetcher.class);
+    changeDependencies =
+        new ChangeDependencies(
+            CacheBuilder.newBuilder()
+                .build(
+                    new CacheLoader<String, ImmutableList<ChangeDependencies.Node>>() {
+                      @Override
+                      public ImmutableList<ChangeDependencies.Node> load(String ref) {
+                        loads.merge(ref, 1, Integer::sum);
+                        return changes.getOrDefault(ref, ImmutableList.of());
+                      }
+                    }));
+    VisibleChanges visibleChanges = mock(VisibleChanges.class);
+    when(visibleChanges.byNumbers(any()))
+        .thenAnswer(
+            invocation -> {
+              Map<Integer, ChangeInfo> result = new HashMap<>();
+              for (Change.Id id : invocation.<Collection<Change.Id>>getArgument(0)) {
+                if (visible.contains(id.get())) {
+                  result.put(id.get(), new ChangeInfo());
+                }
+              }
+              return result;
+            });
+    builder = new DependencyGraphBuilder(commitMessageFetcher, changeDependencies, visibleChanges);
+
+    Change change =
+        new Change(
+            Change.key(ROOT),
+            Change.id(1),
+            Account.id(23),
+            BranchNameKey.create(PROJECT, "master"),
+            new Timestamp(0));
+    PatchSet patchSet = mock(PatchSet.class);
+    when(patchSet.commitId()).thenReturn(REVISION);
+    rsrc = mock(RevisionResource.class);
+    when(rsrc.getChange()).thenReturn(change);
+    when(rsrc.getPatchSet()).thenReturn(patchSet);
+  }
+
+  @Test
+  public void testFollowsDependsOnTransitively() throws Exception {
+    rootDependsOn(A);
+    change(2, A, B);
+    change(3, B);
+
+    DependencyGraph graph = builder.build(rsrc, 10, 100);
+
+    assertThat(graph.getEdges())
+        .containsExactly(ROOT, ImmutableList.of(A), A, ImmutableList.of(B), B, ImmutableList.of());
+    assertThat(graph.getChanges()).containsExactly(1, 2, 3);
+    assertThat(graph.isTruncated()).isFalse();
+  }
+
+  @Test
+  public void testInvisibleChangeIsNotFollowed() throws Exception {
+    rootDependsOn(A);
+    change(2, A, B);
+    change(3, B);
+    visible.remove(2);
+
+    DependencyGraph graph = builder.build(rsrc, 10, 100);
+
+    assertThat(graph.getEdges()).containsExactly(ROOT, ImmutableList.of(A), A, ImmutableList.of());
+    assertThat(graph.contains(B)).isFalse();
+    assertThat(graph.getChanges()).containsExactly(1);
+    assertThat(loads).doesNotContainKey(B);
+  }
+
+  @Test
+  public void testUnresolvedReferenceIsKept() throws Exception {
+    rootDependsOn("Iffffffff");
+
+    DependencyGraph graph = builder.build(rsrc, 10, 100);
+
+    assertThat(graph.getEdges())
+        .containsExactly(ROOT, ImmutableList.of("Iffffffff"), "Iffffffff", ImmutableList.of());
+    assertThat(graph.getChanges()).containsExactly(1);
+  }
+
+  @Test
+  public void testDepthLimit() throws Exception {
+    rootDependsOn(A);
+    change(2, A, B);
+    change(3, B, C);
+    change(4, C);
+
+    DependencyGraph graph = builder.build(rsrc, 2, 100);
+
+    assertThat(graph.getEdges())
+        .containsExactly(ROOT, ImmutableList.of(A), A, ImmutableList.of(B), B, ImmutableList.of());
+    assertThat(graph.isTruncated()).isTrue();
+    assertThat(loads).doesNotContainKey(C);
+  }
+
+  @Test
+  public void testSizeLimit() throws Exception {
+    rootDependsOn(A, B, C);
+    change(2, A);
+    change(3, B);
+    change(4, C);
+
+    DependencyGraph graph = builder.build(rsrc, 10, 3);
+
+    assertThat(graph.size()).isEqualTo(3);
+    assertThat(graph.getEdges())
+        .containsExactly(
+            ROOT, ImmutableList.of(A, B), A, ImmutableList.of(), B, ImmutableList.of());
+    assertThat(graph.isTruncated()).isTrue();
+  }
+
+  @Test
+  public void testMemoizedEdgesAreReused() throws Exception {
+    rootDependsOn(A);
+    change(2, A, B);
+    change(3, B);
+
+    builder.build(rsrc, 10, 100);
+    DependencyGraph graph = builder.build(rsrc, 10, 100);
+
+    assertThat(graph.getEdges())
+        .containsExactly(ROOT, ImmutableList.of(A), A, ImmutableList.of(B), B, ImmutableList.of());
+    assertThat(loads).containsExactly(A, 1, B, 1);
+    verify(commitMessageFetcher, times(2)).fetchDependsOn(PROJECT, REVISION);
+  }
+
+  @Test
+  public void testNewPatchSetInvalidatesMemoizedEdges() throws Exception {
+    rootDependsOn(A);
+    change(2, A);
+    builder.build(rsrc, 10, 100);
+
+    change(2, A, B);
+    change(3, B);
+    changeDependencies.invalidate(Change.id(2), Change.key(A));
+    DependencyGraph graph = builder.build(rsrc, 10, 100);
+
+    assertThat(graph.getEdges())
+        .containsExactly(ROOT, ImmutableList.of(A), A, ImmutableList.of(B), B, ImmutableList.of());
+    assertThat(loads).containsExactly(A, 2, B, 1);
+  }
+
+  @Test
+  public void testNewPatchSetInvalidatesAbbreviatedAndNumberReferences() throws Exception {
+    rootDependsOn("Iaaaaaaaa", "2", B);
+    change(2, A);
+    changes.put("Iaaaaaaaa", changes.get(A));
+    changes.put("2", changes.get(A));
+    change(3, B);
+    builder.build(rsrc, 10, 100);
+
+    changeDependencies.invalidate(Change.id(2), Change.key(A));
+    builder.build(rsrc, 10, 100);
+
+    assertThat(loads).containsExactly("Iaaaaaaaa", 2, "2", 2, B, 1);
+  }
+
+  private void rootDependsOn(String... targets) throws Exception {
+    when(commitMessageFetcher.fetchDependsOn(PROJECT, REVISION))
+        .thenReturn(ImmutableList.copyOf(targets));
+  }
+
+  private void change(int number, String changeId, String... dependsOn) {
+    changes.put(
+        changeId,
+        ImmutableList.of(
+            new ChangeDependencies.Node(
+                Change.id(number),
+                Change.key(changeId),
+                PROJECT,
+                REVISION,
+                ImmutableList.copyOf(dependsOn))));
+    visible.add(number);
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import org.junit.Test;
+
+public class DependencyGraphTest {
+  @Test
+  public void testSingleNode() {
+    DependencyGraph graph = new DependencyGraph();
+    graph.addNode("A");
+
+    List<List<String>> components = graph.stronglyConnectedComponents();
+    assertThat(components).containsExactly(ImmutableList.of("A"));
+    assertThat(graph.isCycle(components.get(0))).isFalse();
+  }
+
+  @Test
+  public void testChainListsDependenciesFirst() {
+    DependencyGraph graph = new DependencyGraph();
+    graph.addEdge("A", "B");
+    graph.addEdge("B", "C");
+
+    assertThat(graph.stronglyConnectedComponents())
+        .containsExactly(ImmutableList.of("C"), ImmutableList.of("B"), ImmutableList.of("A"))
+        .inOrder();
+  }
+
+  @Test
+  public void testLongCycle() {
+    DependencyGraph graph = new DependencyGraph();
+    graph.addEdge("A", "B");
+    graph.addEdge("B", "C");
+    graph.addEdge("C", "A");
+    graph.addEdge("C", "D");
+
+    List<List<String>> components = graph.stronglyConnectedComponents();
+    assertThat(components).hasSize(2);
+    assertThat(components.get(0)).containsExactly("D");
+    assertThat(components.get(1)).containsExactly("A", "B", "C");
+    assertThat(graph.isCycle(components.get(0))).isFalse();
+    assertThat(graph.isCycle(components.get(1))).isTrue();
+  }
+
+  @Test
+  public void testSelfDependency() {
+    DependencyGraph graph = new DependencyGraph();
+    graph.addEdge("A", "A");
+
+    List<List<String>> components = graph.stronglyConnectedComponents();
+    assertThat(components).containsExactly(ImmutableList.of("A"));
+    assertThat(graph.isCycle(components.get(0))).isTrue();
+  }
+
+  @Test
+  public void testDeepChainDoesNotOverflowStack() {
+    DependencyGraph graph = new DependencyGraph();
+    for (int i = 0; i < 100000; i++) {
+      graph.addEdge("I" + i, "I" + (i + 1));
+    }
+
+    List<List<String>> components = graph.stronglyConnectedComponents();
+    assertThat(components).hasSize(100001);
+    assertThat(components.get(0)).containsExactly("I100000");
+  }
+}
@@ -0,0 +1,267 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.PatchSet;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.notedb.ChangeNotes;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DependencyIndexQueueTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("projectFoo");
+  private static final Change.Key TARGET = Change.key("I0123456789abcdef0123456789abcdef01234567");
+
+  private ChangeNotes.Factory notesFactory;
+  private CommitMessageFetcher commitMessageFetcher;
+  private DependencyIndex index;
+  private ExecutorService executor;
+  private Queue<Runnable> scheduled;
+
+  /** Runs the tasks when the test asks for it. */
+  private class ManualExecutor extends AbstractExecutorService {
+    private boolean shutdown;
+
+    @Override
+    public void execute(Runnable command) {
+      if (shutdown) {
+        throw new RejectedExecutionException();
+      }
+      scheduled.add(command);
+    }
+
+    @Override
+    public void shutdown() {
+      shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      shutdown = true;
+      return ImmutableList.of();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      runScheduled();
+      return true;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    notesFactory = mock(ChangeNotes.Factory.class);
+    commitMessageFetcher = mock(CommitMessageFetcher.class);
+    when(commitMessageFetcher.fetchAllDependsOn(eq(PROJECT), any()))
+        .thenAnswer(
+            invocation -> {
+              Map<ObjectId, ImmutableList<String>> dependsOn = new HashMap<>();
+              for (ObjectId id : invocation.<Collection<ObjectId>>getArgument(1)) {
+                dependsOn.put(id, ImmutableList.of(TARGET.get()));
+              }
+              return dependsOn;
+            });
+    index = new DependencyIndex();
+    scheduled = new ConcurrentLinkedQueue<>();
+    executor = new ManualExecutor();
+  }
+
+  @Test
+  public void testChangesAreProcessedInBackground() throws Exception {
+    DependencyIndexQueue queue = createQueue(10, 10);
+    addChange(queue, 1);
+
+    assertThat(index.getNeededBy(TARGET)).isEmpty();
+    runScheduled();
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(1));
+  }
+
+  @Test
+  public void testChangesOfAProjectAreBatched() throws Exception {
+    DependencyIndexQueue queue = createQueue(10, 10);
+    addChange(queue, 1);
+    addChange(queue, 2);
+    addChange(queue, 1);
+
+    assertThat(queue.size()).isEqualTo(2);
+    assertThat(scheduled).hasSize(1);
+    runScheduled();
+
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(1), Change.id(2));
+    verify(commitMessageFetcher, times(1)).fetchAllDependsOn(eq(PROJECT), any());
+  }
+
+  @Test
+  public void testBatchSize() throws Exception {
+    DependencyIndexQueue queue = createQueue(10, 2);
+    addChange(queue, 1);
+    addChange(queue, 2);
+    addChange(queue, 3);
+    runScheduled();
+
+    assertThat(index.getNeededBy(TARGET)).hasSize(3);
+    verify(commitMessageFetcher, times(2)).fetchAllDependsOn(eq(PROJECT), any());
+  }
+
+  @Test
+  public void testFullQueueDefersChanges() throws Exception {
+    DependencyIndexQueue queue = createQueue(1, 1);
+    addChange(queue, 1);
+    addChange(queue, 2);
+    addChange(queue, 3);
+    addChange(queue, 2);
+
+    assertThat(queue.size()).isEqualTo(1);
+    assertThat(queue.deferredSize()).isEqualTo(2);
+
+    runScheduled();
+    assertThat(queue.size()).isEqualTo(0);
+    assertThat(queue.deferredSize()).isEqualTo(0);
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(1), Change.id(2), Change.id(3));
+    verify(commitMessageFetcher, times(3)).fetchAllDependsOn(eq(PROJECT), any());
+  }
+
+  @Test
+  public void testManyDeferredChanges() throws Exception {
+    DependencyIndexQueue queue = createQueue(10, 10);
+    for (int id = 1; id <= 100; id++) {
+      addChange(queue, id);
+    }
+    for (int id = 2; id <= 100; id += 2) {
+      queue.remove(Change.id(id));
+    }
+
+    assertThat(queue.deferredSize()).isEqualTo(45);
+    runScheduled();
+    assertThat(index.getNeededBy(TARGET)).hasSize(50);
+  }
+
+  @Test
+  public void testRemoveDeferredChange() throws Exception {
+    DependencyIndexQueue queue = createQueue(1, 1);
+    addChange(queue, 1);
+    addChange(queue, 2);
+    queue.remove(Change.id(2));
+
+    assertThat(queue.deferredSize()).isEqualTo(0);
+    runScheduled();
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(1));
+  }
+
+  @Test
+  public void testStopProcessesDeferredChanges() throws Exception {
+    DependencyIndexQueue queue = createQueue(1, 1);
+    addChange(queue, 1);
+    addChange(queue, 2);
+    queue.stop();
+
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(1), Change.id(2));
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    DependencyIndexQueue queue = createQueue(10, 10);
+    addChange(queue, 1);
+    runScheduled();
+    addChange(queue, 1);
+    queue.remove(Change.id(1));
+
+    assertThat(queue.size()).isEqualTo(0);
+    assertThat(index.getNeededBy(TARGET)).isEmpty();
+  }
+
+  @Test
+  public void testStopProcessesQueuedChanges() throws Exception {
+    DependencyIndexQueue queue = createQueue(10, 10);
+    addChange(queue, 1);
+    queue.stop();
+
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(1));
+
+    addChange(queue, 2);
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(1), Change.id(2));
+  }
+
+  private DependencyIndexQueue createQueue(int capacity, int batchSize) {
+    return new DependencyIndexQueue(
+        notesFactory,
+        commitMessageFetcher,
+        index,
+        mock(ChangeDependencies.class),
+        executor,
+        capacity,
+        batchSize);
+  }
+
+  private void addChange(DependencyIndexQueue queue, int id) {
+    mockChange(id);
+    queue.add(PROJECT, Change.id(id));
+  }
+
+  private void mockChange(int id) {
+    Change change =
+        new Change(
+            Change.key(String.format("I%040x", id)),
+            Change.id(id),
+            Account.id(23),
+            BranchNameKey.create(PROJECT, "master"),
+            new Timestamp(0));
+    PatchSet ps = mock(PatchSet.class);
+    when(ps.commitId()).thenReturn(ObjectId.fromString(String.format("%040x", id)));
+    ChangeNotes notes = mock(ChangeNotes.class);
+    when(notes.getChange()).thenReturn(change);
+    when(notes.getCurrentPatchSet()).thenReturn(ps);
+    when(notesFactory.createChecked(PROJECT, Change.id(id))).thenReturn(notes);
+  }
+
+  private void runScheduled() {
+    for (Runnable r = scheduled.poll(); r != null; r = scheduled.poll()) {
+      r.run();
+    }
+  }
+}
@@ -0,0 +1,258 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.testing.InMemoryRepositoryManager;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DependencyIndexStoreTest {
+  private static final Project.NameKey ALL_PROJECTS = Project.nameKey("All-Projects");
+  private static final Change.Key TARGET = Change.key("I0123456789abcdef0123456789abcdef01234567");
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private InMemoryRepositoryManager repoManager;
+  private Path dataDir;
+
+  @Before
+  public void setUp() throws Exception {
+    repoManager = new InMemoryRepositoryManager();
+    repoManager.createRepository(ALL_PROJECTS).close();
+    dataDir = tmp.getRoot().toPath();
+  }
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    DependencyIndex index = new DependencyIndex();
+    index.update(Change.id(1), changeKey(1), ImmutableList.of(TARGET.get(), "3"));
+    index.update(Change.id(2), changeKey(2), ImmutableList.of(TARGET.get()));
+    createStore(index).save();
+
+    DependencyIndex loaded = new DependencyIndex();
+    createStore(loaded).start();
+
+    assertThat(loaded.getNeededBy(TARGET)).containsExactly(Change.id(1), Change.id(2));
+    assertThat(loaded.getNeededBy(Change.id(3))).containsExactly(Change.id(1));
+    assertThat(loaded.getKey(Change.id(1))).isEqualTo(changeKey(1));
+  }
+
+  @Test
+  public void testUnchangedIndexIsNotWritten() throws Exception {
+    DependencyIndex index = new DependencyIndex();
+    index.update(Change.id(1), changeKey(1), ImmutableList.of(TARGET.get()));
+    DependencyIndexStore store = createStore(index);
+    store.save();
+    ObjectId tip = tip();
+
+    store.save();
+    index.update(Change.id(1), changeKey(1), ImmutableList.of(TARGET.get()));
+    store.save();
+
+    assertThat(tip()).isEqualTo(tip);
+  }
+
+  @Test
+  public void testCatchUpWithOtherServer() throws Exception {
+    DependencyIndex indexA = new DependencyIndex();
+    DependencyIndexStore storeA = createStore(indexA);
+    DependencyIndex indexB = new DependencyIndex();
+    DependencyIndexStore storeB = createStore(indexB);
+    storeA.start();
+    storeB.start();
+
+    indexA.update(Change.id(1), changeKey(1), ImmutableList.of(TARGET.get()));
+    indexA.update(Change.id(2), changeKey(2), ImmutableList.of(TARGET.get()));
+    storeA.save();
+    storeB.save();
+    assertThat(indexB.getNeededBy(TARGET)).containsExactly(Change.id(1), Change.id(2));
+
+    indexA.remove(Change.id(1));
+    indexA.update(Change.id(2), changeKey(2), ImmutableList.of("I00000004"));
+    storeA.save();
+    storeB.save();
+    assertThat(indexB.getNeededBy(TARGET)).isEmpty();
+    assertThat(indexB.getNeededBy(Change.key("I00000004"))).containsExactly(Change.id(2));
+    assertThat(indexB.contains(Change.id(1))).isFalse();
+  }
+
+  @Test
+  public void testLocalChangesAreWrittenOnTopOfOtherServer() throws Exception {
+    DependencyIndex indexA = new DependencyIndex();
+    DependencyIndexStore storeA = createStore(indexA);
+    DependencyIndex indexB = new DependencyIndex();
+    DependencyIndexStore storeB = createStore(indexB);
+    storeA.start();
+    storeB.start();
+
+    indexA.update(Change.id(1), changeKey(1), ImmutableList.of(TARGET.get()));
+    indexA.update(Change.id(2), changeKey(2), ImmutableList.of(TARGET.get()));
+    indexB.update(Change.id(2), changeKey(2), ImmutableList.of("I00000004"));
+    storeA.save();
+    storeB.save();
+    storeA.save();
+
+    for (DependencyIndex index : ImmutableList.of(indexA, indexB)) {
+      assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(1));
+      assertThat(index.getNeededBy(Change.key("I00000004"))).containsExactly(Change.id(2));
+    }
+  }
+
+  @Test
+  public void testCatchUpAcrossFanOut() throws Exception {
+    DependencyIndex indexA = new DependencyIndex();
+    DependencyIndexStore storeA = createStore(indexA);
+    DependencyIndex indexB = new DependencyIndex();
+    DependencyIndexStore storeB = createStore(indexB);
+    for (int i = 1; i <= 200; i++) {
+      indexA.update(Change.id(i), changeKey(i), ImmutableList.of(TARGET.get()));
+    }
+    storeA.save();
+    storeB.start();
+
+    // Enough notes to split the note tree into subtrees.
+    for (int i = 201; i <= 600; i++) {
+      indexA.update(Change.id(i), changeKey(i), ImmutableList.of(TARGET.get()));
+    }
+    storeA.save();
+    storeB.save();
+
+    assertThat(indexB.size()).isEqualTo(600);
+    assertThat(indexB.getNeededBy(TARGET)).hasSize(600);
+  }
+
+  @Test
+  public void testCompleteIsShared() throws Exception {
+    DependencyIndex indexA = new DependencyIndex();
+    DependencyIndexStore storeA = createStore(indexA);
+    DependencyIndex indexB = new DependencyIndex();
+    DependencyIndexStore storeB = createStore(indexB);
+    indexA.update(Change.id(1), changeKey(1), ImmutableList.of(TARGET.get()));
+    storeA.start();
+    storeB.start();
+    try (Repository repo = repoManager.openRepository(ALL_PROJECTS)) {
+      assertThat(DependencyIndexStore.isComplete(repo)).isFalse();
+    }
+
+    indexA.setComplete();
+    storeA.save();
+    storeB.save();
+    assertThat(indexB.isComplete()).isTrue();
+    try (Repository repo = repoManager.openRepository(ALL_PROJECTS)) {
+      assertThat(DependencyIndexStore.isComplete(repo)).isTrue();
+    }
+
+    DependencyIndex loaded = new DependencyIndex();
+    createStore(loaded).start();
+    assertThat(loaded.isComplete()).isTrue();
+    assertThat(loaded.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void testMigratesLegacyFile() throws Exception {
+    Path legacyFile = dataDir.resolve(DependencyIndexStore.LEGACY_FILE_NAME);
+    Files.write(
+        legacyFile,
+        ImmutableList.of("1 " + changeKey(1) + " " + TARGET, "2 " + changeKey(2) + " " + TARGET),
+        UTF_8);
+
+    DependencyIndex index = new DependencyIndex();
+    createStore(index).start();
+    DependencyIndex loaded = new DependencyIndex();
+    createStore(loaded).start();
+
+    assertThat(Files.exists(legacyFile)).isFalse();
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(1), Change.id(2));
+    assertThat(loaded.getNeededBy(TARGET)).containsExactly(Change.id(1), Change.id(2));
+  }
+
+  @Test
+  public void testMigratesCompleteLegacyFile() throws Exception {
+    Path legacyFile = dataDir.resolve(DependencyIndexStore.LEGACY_FILE_NAME);
+    Files.write(
+        legacyFile,
+        ImmutableList.of(DependencyIndexStore.LEGACY_COMPLETE, "1 " + changeKey(1) + " " + TARGET),
+        UTF_8);
+
+    DependencyIndex index = new DependencyIndex();
+    createStore(index).start();
+
+    assertThat(index.isComplete()).isTrue();
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(1));
+    try (Repository repo = repoManager.openRepository(ALL_PROJECTS)) {
+      assertThat(DependencyIndexStore.isComplete(repo)).isTrue();
+    }
+  }
+
+  @Test
+  public void testMergesLegacyFileIntoExistingRef() throws Exception {
+    DependencyIndex other = new DependencyIndex();
+    other.update(Change.id(1), changeKey(1), ImmutableList.of("I00000004"));
+    other.update(Change.id(3), changeKey(3), ImmutableList.of(TARGET.get()));
+    createStore(other, tmp.newFolder().toPath()).save();
+    Path legacyFile = dataDir.resolve(DependencyIndexStore.LEGACY_FILE_NAME);
+    Files.write(
+        legacyFile,
+        ImmutableList.of("1 " + changeKey(1) + " " + TARGET, "2 " + changeKey(2) + " " + TARGET),
+        UTF_8);
+
+    DependencyIndex index = new DependencyIndex();
+    createStore(index).start();
+    DependencyIndex loaded = new DependencyIndex();
+    createStore(loaded, tmp.newFolder().toPath()).start();
+
+    assertThat(Files.exists(legacyFile)).isFalse();
+    for (DependencyIndex i : ImmutableList.of(index, loaded)) {
+      assertThat(i.getNeededBy(TARGET)).containsExactly(Change.id(2), Change.id(3));
+      assertThat(i.getNeededBy(Change.key("I00000004"))).containsExactly(Change.id(1));
+    }
+  }
+
+  private DependencyIndexStore createStore(DependencyIndex index) {
+    return createStore(index, dataDir);
+  }
+
+  private DependencyIndexStore createStore(DependencyIndex index, Path dataDir) {
+    return new DependencyIndexStore(
+        index,
+        repoManager::openRepository,
+        ALL_PROJECTS,
+        () -> new PersonIdent("Gerrit", "gerrit@example.org"),
+        dataDir);
+  }
+
+  private ObjectId tip() throws Exception {
+    try (Repository repo = repoManager.openRepository(ALL_PROJECTS)) {
+      return repo.exactRef(DependencyIndexStore.REF).getObjectId();
+    }
+  }
+
+  private static Change.Key changeKey(int change) {
+    return Change.key(String.format("I%040x", change));
+  }
+}
@@ -0,0 +1,241 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.gerrit.entities.Change;
+import org.junit.Test;
+
+public class DependencyIndexTest {
+  private static final Change.Key TARGET = Change.key("I0000000000000000000000000000000000000000");
+
+  @Test
+  public void testNoNeededBy() {
+    DependencyIndex index = new DependencyIndex();
+
+    assertThat(index.getNeededBy(TARGET)).isEmpty();
+  }
+
+  @Test
+  public void testNeededBy() {
+    DependencyIndex index = new DependencyIndex();
+    index.update(Change.id(1), Change.key("I00000001"), ImmutableList.of(TARGET.get()));
+    index.update(Change.id(2), Change.key("I00000002"), ImmutableList.of("I00000003"));
+    index.update(Change.id(3), Change.key("I00000003"), ImmutableList.of(TARGET.get()));
+
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(1), Change.id(3)).inOrder();
+  }
+
+  @Test
+  public void testNeededByNumber() {
+    DependencyIndex index = new DependencyIndex();
+    index.update(Change.id(1), Change.key("I00000001"), ImmutableList.of("3"));
+    index.update(Change.id(2), Change.key("I00000002"), ImmutableList.of(TARGET.get()));
+    index.update(Change.id(3), Change.key("I00000003"), ImmutableList.of("3"));
+
+    assertThat(index.getNeededBy(Change.id(3))).containsExactly(Change.id(1));
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(2));
+    assertThat(index.getNeededByVersion(Change.id(3))).isNotEqualTo(0);
+    assertThat(index.getNeededByVersion(Change.id(2))).isEqualTo(0);
+  }
+
+  @Test
+  public void testUpdateReplacesDependencies() {
+    DependencyIndex index = new DependencyIndex();
+    index.update(Change.id(1), Change.key("I00000001"), ImmutableList.of(TARGET.get()));
+    index.update(Change.id(1), Change.key("I00000001"), ImmutableList.of("I00000002"));
+
+    assertThat(index.getNeededBy(TARGET)).isEmpty();
+    assertThat(index.getNeededBy(Change.key("I00000002"))).containsExactly(Change.id(1));
+  }
+
+  @Test
+  public void testRemove() {
+    DependencyIndex index = new DependencyIndex();
+    index.update(Change.id(1), Change.key("I00000001"), ImmutableList.of(TARGET.get()));
+    index.remove(Change.id(1));
+
+    assertThat(index.getNeededBy(TARGET)).isEmpty();
+    assertThat(index.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testChangeWithSameKeyIsNotNeededBy() {
+    DependencyIndex index = new DependencyIndex();
+    index.update(Change.id(1), TARGET, ImmutableList.of(TARGET.get()));
+
+    assertThat(index.getNeededBy(TARGET)).isEmpty();
+  }
+
+  @Test
+  public void testNeededByVersion() {
+    DependencyIndex index = new DependencyIndex();
+    assertThat(index.getNeededByVersion(TARGET)).isEqualTo(0);
+
+    index.update(Change.id(1), Change.key("I00000001"), ImmutableList.of(TARGET.get()));
+    long v1 = index.getNeededByVersion(TARGET);
+    index.update(Change.id(2), Change.key("I00000002"), ImmutableList.of("I00000003"));
+    assertThat(index.getNeededByVersion(TARGET)).isEqualTo(v1);
+
+    index.update(Change.id(1), Change.key("I00000001"), ImmutableList.of(TARGET.get()));
+    long v2 = index.getNeededByVersion(TARGET);
+    assertThat(v2).isNotEqualTo(v1);
+
+    index.update(Change.id(3), Change.key("I00000003"), ImmutableList.of(TARGET.get()));
+    long v3 = index.getNeededByVersion(TARGET);
+    assertThat(v3).isNotEqualTo(v2);
+
+    index.remove(Change.id(3));
+    assertThat(index.getNeededByVersion(TARGET)).isNotEqualTo(v3);
+
+    index.remove(Change.id(1));
+    assertThat(index.getNeededByVersion(TARGET)).isEqualTo(0);
+  }
+
+  @Test
+  public void testChangeVersion() {
+    DependencyIndex index = new DependencyIndex();
+    long v1 = index.getChangeVersion(TARGET.get());
+
+    index.update(Change.id(1), TARGET, ImmutableList.of());
+    long v2 = index.getChangeVersion(TARGET.get());
+    assertThat(v2).isNotEqualTo(v1);
+
+    index.update(Change.id(2), TARGET, ImmutableList.of("I00000001"));
+    long v3 = index.getChangeVersion(TARGET.get());
+    assertThat(v3).isNotEqualTo(v2);
+
+    index.remove(Change.id(3));
+    assertThat(index.getChangeVersion(TARGET.get())).isNotEqualTo(v3);
+  }
+
+  @Test
+  public void testFindCycle() {
+    DependencyIndex index = new DependencyIndex();
+    // I00000002 -> I00000001 -> TARGET
+    index.update(Change.id(1), Change.key("I00000001"), ImmutableList.of(TARGET.get()));
+    index.update(Change.id(2), Change.key("I00000002"), ImmutableList.of("I00000001"));
+
+    assertThat(index.findCycle(TARGET, ImmutableList.of("I00000002"), 100))
+        .containsExactly(TARGET.get(), "I00000002", "I00000001", TARGET.get())
+        .inOrder();
+    assertThat(index.findCycle(TARGET, ImmutableList.of("I00000003"), 100)).isEmpty();
+    assertThat(index.findCycle(Change.key("I00000001"), ImmutableList.of(TARGET.get()), 100))
+        .isEmpty();
+  }
+
+  @Test
+  public void testFindCycleWithAbbreviatedChangeIds() {
+    DependencyIndex index = new DependencyIndex();
+    Change.Key key = Change.key("I0000000100000000000000000000000000000000");
+    index.update(Change.id(1), key, ImmutableList.of(TARGET.get().substring(0, 12)));
+
+    assertThat(index.findCycle(TARGET, ImmutableList.of("I00000001"), 100))
+        .containsExactly(TARGET.get(), key.get(), TARGET.get())
+        .inOrder();
+  }
+
+  @Test
+  public void testFindCycleWithChangeNumbers() {
+    DependencyIndex index = new DependencyIndex();
+    index.update(Change.id(1), Change.key("I00000001"), ImmutableList.of(TARGET.get()));
+    index.update(Change.id(2), Change.key("I00000002"), ImmutableList.of("1"));
+
+    assertThat(index.findCycle(TARGET, ImmutableList.of("2"), 100))
+        .containsExactly(TARGET.get(), "I00000002", "I00000001", TARGET.get())
+        .inOrder();
+    assertThat(index.findCycle(TARGET, ImmutableList.of("3"), 100)).isEmpty();
+  }
+
+  @Test
+  public void testFindCycleIsLimited() {
+    DependencyIndex index = new DependencyIndex();
+    String previous = TARGET.get();
+    for (int i = 1; i <= 10; i++) {
+      String key = String.format("I%08d", i);
+      index.update(Change.id(i), Change.key(key), ImmutableList.of(previous));
+      previous = key;
+    }
+
+    assertThat(index.findCycle(TARGET, ImmutableList.of(previous), 100)).hasSize(12);
+    assertThat(index.findCycle(TARGET, ImmutableList.of(previous), 5)).isEmpty();
+  }
+
+  @Test
+  public void testNeededByVersionDiffersBetweenIndexes() {
+    DependencyIndex index1 = new DependencyIndex();
+    index1.update(Change.id(1), Change.key("I00000001"), ImmutableList.of(TARGET.get()));
+    DependencyIndex index2 = new DependencyIndex();
+    index2.update(Change.id(1), Change.key("I00000001"), ImmutableList.of(TARGET.get()));
+
+    assertThat(index1.getNeededByVersion(TARGET)).isNotEqualTo(index2.getNeededByVersion(TARGET));
+  }
+
+  @Test
+  public void testHubRemoval() {
+    DependencyIndex index = new DependencyIndex();
+    for (int i = 1; i <= 100; i++) {
+      index.update(
+          Change.id(i), Change.key(String.format("I%08d", i)), ImmutableList.of(TARGET.get()));
+    }
+    for (int i = 1; i <= 100; i += 2) {
+      index.remove(Change.id(i));
+    }
+
+    assertThat(index.getNeededBy(TARGET)).hasSize(50);
+    assertThat(index.getNeededBy(TARGET).get(0)).isEqualTo(Change.id(2));
+    assertThat(index.getKey(Change.id(100))).isEqualTo(Change.key("I00000100"));
+    assertThat(index.getKey(Change.id(99))).isNull();
+  }
+
+  @Test
+  public void testEntries() {
+    DependencyIndex index = new DependencyIndex();
+    index.update(
+        Change.id(1), Change.key("I00000001"), ImmutableList.of(TARGET.get(), "2", TARGET.get()));
+
+    DependencyIndex.Entry entry = Iterables.getOnlyElement(index.entries());
+    assertThat(entry.id).isEqualTo(Change.id(1));
+    assertThat(entry.key).isEqualTo(Change.key("I00000001"));
+    assertThat(entry.dependsOn).containsExactly(TARGET.get(), "2").inOrder();
+  }
+
+  @Test
+  public void testSizeAndMemory() {
+    DependencyIndex index = new DependencyIndex();
+    String hub = "I" + "f".repeat(40);
+    long empty = index.memoryBytes();
+    for (int i = 1; i <= 1000; i++) {
+      index.update(
+          Change.id(i),
+          Change.key(String.format("I%040x", i)),
+          ImmutableList.of(String.format("I%040x", i - 1), hub));
+    }
+
+    assertThat(index.size()).isEqualTo(1000);
+    assertThat(index.edgeCount()).isEqualTo(2000);
+    assertThat(index.keyCount()).isEqualTo(1002);
+    assertThat(index.memoryBytes() - empty).isLessThan(1000 * 150);
+
+    for (int i = 1; i <= 1000; i++) {
+      index.remove(Change.id(i));
+    }
+    assertThat(index.size()).isEqualTo(0);
+    assertThat(index.edgeCount()).isEqualTo(0);
+    assertThat(index.keyCount()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,176 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.testing.InMemoryRepositoryManager;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DependencyReindexerTest {
+  private static final Project.NameKey PROJECT_A = Project.nameKey("projectA");
+  private static final Project.NameKey PROJECT_B = Project.nameKey("projectB");
+  private static final Project.NameKey MISSING = Project.nameKey("missing");
+  private static final Project.NameKey ALL_PROJECTS = Project.nameKey("All-Projects");
+  private static final Change.Key TARGET = Change.key("I0123456789abcdef0123456789abcdef01234567");
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private InMemoryRepositoryManager repoManager;
+  private Path dataDir;
+  private DependencyIndex index;
+  private DependencyIndexStore store;
+
+  @Before
+  public void setUp() throws Exception {
+    repoManager = new InMemoryRepositoryManager();
+    dataDir = tmp.getRoot().toPath();
+    repoManager.createRepository(ALL_PROJECTS).close();
+    index = new DependencyIndex();
+    store = createStore();
+  }
+
+  @Test
+  public void testIndexesCurrentPatchSets() throws Exception {
+    try (Repository repo = repoManager.createRepository(PROJECT_A)) {
+      createPatchSet(repo, 1, 1, "Depends-On: I00000000\n");
+      createPatchSet(repo, 1, 2, "Depends-On: " + TARGET + "\n");
+      createPatchSet(repo, 2, 1, "");
+      createPatchSet(repo, 3, 1, "Depends-On: " + TARGET + "\n");
+    }
+    index.update(Change.id(2), changeKey(2), ImmutableList.of(TARGET.get()));
+
+    assertThat(createReindexer().run(ImmutableList.of(PROJECT_A), 2, true)).isTrue();
+
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(1), Change.id(3));
+    assertThat(index.getNeededBy(Change.key("I00000000"))).isEmpty();
+    assertThat(index.isComplete()).isTrue();
+    try (Repository repo = repoManager.openRepository(ALL_PROJECTS)) {
+      assertThat(DependencyIndexStore.isComplete(repo)).isTrue();
+    }
+    assertThat(Files.exists(dataDir.resolve(DependencyReindexer.PROGRESS_FILE_NAME))).isFalse();
+  }
+
+  @Test
+  public void testFailedProjectsAreRetried() throws Exception {
+    try (Repository repo = repoManager.createRepository(PROJECT_A)) {
+      createPatchSet(repo, 1, 1, "Depends-On: " + TARGET + "\n");
+    }
+
+    assertThat(createReindexer().run(ImmutableList.of(PROJECT_A, MISSING), 1, true)).isFalse();
+    assertThat(index.isComplete()).isFalse();
+    assertThat(Files.readAllLines(dataDir.resolve(DependencyReindexer.PROGRESS_FILE_NAME), UTF_8))
+        .containsExactly(PROJECT_A.get());
+
+    try (Repository repo = repoManager.createRepository(MISSING)) {
+      createPatchSet(repo, 2, 1, "Depends-On: " + TARGET + "\n");
+    }
+    index = new DependencyIndex();
+    store = createStore();
+    store.start();
+
+    assertThat(createReindexer().run(ImmutableList.of(PROJECT_A, MISSING), 1, true)).isTrue();
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(1), Change.id(2));
+  }
+
+  @Test
+  public void testResumeSkipsRecordedProjects() throws Exception {
+    try (Repository repo = repoManager.createRepository(PROJECT_A)) {
+      createPatchSet(repo, 1, 1, "Depends-On: " + TARGET + "\n");
+    }
+    try (Repository repo = repoManager.createRepository(PROJECT_B)) {
+      createPatchSet(repo, 2, 1, "Depends-On: " + TARGET + "\n");
+    }
+    Files.write(
+        dataDir.resolve(DependencyReindexer.PROGRESS_FILE_NAME), PROJECT_A.get().getBytes(UTF_8));
+
+    assertThat(createReindexer().run(ImmutableList.of(PROJECT_A, PROJECT_B), 1, true)).isTrue();
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(2));
+
+    Files.write(
+        dataDir.resolve(DependencyReindexer.PROGRESS_FILE_NAME), PROJECT_A.get().getBytes(UTF_8));
+    assertThat(createReindexer().run(ImmutableList.of(PROJECT_A, PROJECT_B), 1, false)).isTrue();
+    assertThat(index.getNeededBy(TARGET)).containsExactly(Change.id(1), Change.id(2));
+  }
+
+  private DependencyIndexStore createStore() {
+    return new DependencyIndexStore(
+        index,
+        repoManager::openRepository,
+        ALL_PROJECTS,
+        () -> new PersonIdent("Gerrit", "gerrit@example.org"),
+        dataDir);
+  }
+
+  private DependencyReindexer createReindexer() {
+    return new DependencyReindexer(
+        index,
+        store,
+        repoManager::openRepository,
+        new DependsOnParser(null),
+        dataDir,
+        new PrintWriter(new StringWriter()));
+  }
+
+  private static Change.Key changeKey(int change) {
+    return Change.key(String.format("I%040x", change));
+  }
+
+  private static void createPatchSet(Repository repo, int change, int patchSet, String footers)
+      throws IOException {
+    ObjectId id;
+    try (ObjectInserter ins = repo.newObjectInserter()) {
+      CommitBuilder cb = new CommitBuilder();
+      cb.setTreeId(ins.insert(Constants.OBJ_TREE, new byte[0]));
+      PersonIdent ident = new PersonIdent("Author", "author@example.org", 0, 0);
+      cb.setAuthor(ident);
+      cb.setCommitter(ident);
+      cb.setMessage(
+          "Change "
+              + change
+              + " patch set "
+              + patchSet
+              + "\n\n"
+              + footers
+              + "Change-Id: "
+              + changeKey(change)
+              + "\n");
+      id = ins.insert(cb);
+      ins.flush();
+    }
+    RefUpdate ru =
+        repo.updateRef(String.format("refs/changes/%02d/%d/%d", change % 100, change, patchSet));
+    ru.setNewObjectId(id);
+    assertThat(ru.update()).isEqualTo(RefUpdate.Result.NEW);
+  }
+}
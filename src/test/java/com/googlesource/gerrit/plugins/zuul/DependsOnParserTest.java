@@ -0,0 +1,205 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+public class DependsOnParserTest {
+  private static final Pattern DEPENDS_ON =
+      Pattern.compile("[Dd]epends-[Oo]n:? (I[0-9a-f]{8,40})", Pattern.DOTALL);
+
+  private static final DependsOnParser PARSER = new DependsOnParser("https://review.example.org");
+
+  private static final String HEX40 = "0123456789abcdef0123456789abcdef01234567";
+
+  private static final ImmutableList<String> MESSAGES =
+      ImmutableList.of(
+          "",
+          "Subject",
+          "Subject\n\nDepends-On: I0123456789abcdef",
+          "Subject\n\nDepends-On I0123456789abcdef",
+          "Subject\n\ndepends-on: I0123456789abcdef\n",
+          "Subject\n\nDepends-on: I01234567",
+          "Subject\n\nDepends-On: I0123456",
+          "Subject\n\nDepends-On: I" + HEX40,
+          "Subject\n\nDepends-On: I" + HEX40 + "89abcdef",
+          "Subject\n\nDepends-On: I0123456789ABCDEF",
+          "Subject\n\nDepends-On: I01234567DEADBEEF",
+          "Subject\n\nDepends-On:: I0123456789abcdef",
+          "Subject\n\nDepends-On:I0123456789abcdef",
+          "Subject\n\nDepends-On:  I0123456789abcdef",
+          "Subject\n\nDEPENDS-ON: I0123456789abcdef",
+          "Subject\n\nDepends-On: I0123456789abcdef\nDepends-On: Iabcdef0123456789\n",
+          "Depends-On: I0123456789abcdefDepends-On: Iabcdef0123456789",
+          "Subject\n\nDDepends-On: I0123456789abcdef",
+          "Subject\n\nDepends-Depends-On: I0123456789abcdef",
+          "Subject\n\nDepends-On: Depends-On: I0123456789abcdef",
+          "Sübject ✓\n\nÄ Depends-On: I0123456789abcdef ü\n",
+          "Subject\n\nDepends-On: I0123456789abcdef\n\nChange-Id: I0123456789abcdef\n",
+          "Depends-On",
+          "Depends-On:",
+          "Depends-On: ",
+          "Depends-On: I",
+          "Depends-On: I0123456789abcde");
+
+  @Test
+  public void testMatchesRegex() {
+    for (String message : MESSAGES) {
+      assertWithMessage("Depends-On of %s", message)
+          .that(PARSER.parse(message))
+          .containsExactlyElementsIn(parseWithRegex(message))
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void testMatchesRegexOnEveryPrefix() {
+    String message =
+        "Subject\n\nDepends-On: I0123456789abcdef\ndepends-on I"
+            + HEX40
+            + "\nDepends-On: I01234567";
+    for (int i = 0; i <= message.length(); i++) {
+      String prefix = message.substring(0, i);
+      assertWithMessage("Depends-On of %s", prefix)
+          .that(PARSER.parse(prefix))
+          .containsExactlyElementsIn(parseWithRegex(prefix))
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void testParseRange() {
+    byte[] b = "Depends-On: I0123456789abcdef Depends-On: Iabcdef0123456789".getBytes(UTF_8);
+
+    assertThat(PARSER.parse(b, 0, 29)).containsExactly("I0123456789abcdef");
+    assertThat(PARSER.parse(b, 1, b.length)).containsExactly("Iabcdef0123456789");
+    assertThat(PARSER.parse(b, 0, 21)).containsExactly("I01234567");
+  }
+
+  @Test
+  public void testParseCommit() {
+    byte[] rawCommit =
+        ("tree 3faaefce19558dfc8d9c976f09ae4897f45cb242\n"
+                + "author Depends-On: I0123456789abcdef <author@example.org> 1592579853 +0200\n"
+                + "committer Committer <committer@example.org> 1592579853 +0200\n"
+                + "\n"
+                + "Subject\n"
+                + "\n"
+                + "Depends-On: Iabcdef0123456789\n")
+            .getBytes(UTF_8);
+
+    assertThat(PARSER.parseCommit(rawCommit)).containsExactly("Iabcdef0123456789");
+  }
+
+  @Test
+  public void testParseCommitWithoutMessage() {
+    byte[] rawCommit = "tree 3faaefce19558dfc8d9c976f09ae4897f45cb242\n".getBytes(UTF_8);
+
+    assertThat(PARSER.parseCommit(rawCommit)).isEmpty();
+  }
+
+  @Test
+  public void testChangeNumbers() {
+    assertThat(parseFooters("Depends-On: 12345")).containsExactly("12345");
+    assertThat(parseFooters("depends-on 12345\n")).containsExactly("12345");
+    assertThat(parseFooters("Depends-On: 012345.")).containsExactly("12345");
+    assertThat(parseFooters("Depends-On: 2147483647")).containsExactly("2147483647");
+    assertThat(parseFooters("Depends-On: 2147483648")).isEmpty();
+    assertThat(parseFooters("Depends-On: 12345678901")).isEmpty();
+    assertThat(parseFooters("Depends-On: 0")).isEmpty();
+    assertThat(parseFooters("Depends-On: 123abc")).isEmpty();
+    assertThat(parseFooters("Depends-On: 12\nDepends-On: I0123456789abcdef"))
+        .containsExactly("12", "I0123456789abcdef")
+        .inOrder();
+  }
+
+  @Test
+  public void testChangeNumbersOnlyInFooters() {
+    assertThat(PARSER.parse("Depends-On: 12345")).isEmpty();
+    assertThat(PARSER.parse("Subject\nDepends-On: 12345")).isEmpty();
+    assertThat(PARSER.parse("Subject\n\nthis depends-on 3 other fixes\n")).isEmpty();
+    assertThat(PARSER.parse("Subject\n\nDepends-On: 12 Depends-On: 13")).containsExactly("12");
+    assertThat(PARSER.parse("Subject\n\nDepends-On: 12\n\nChange-Id: I0123456789abcdef")).isEmpty();
+    assertThat(PARSER.parse("Subject\n\nBody\n \nDepends-On: 12\nChange-Id: I0123456789abcdef\n\n"))
+        .containsExactly("12");
+    assertThat(PARSER.parse("Subject\n\nDepends-On 3 fixes\n\nDepends-On: I0123456789abcdef"))
+        .containsExactly("I0123456789abcdef");
+  }
+
+  @Test
+  public void testUrls() {
+    assertThat(parseFooters("Depends-On: https://review.example.org/c/project/+/12345"))
+        .containsExactly("12345");
+    assertThat(parseFooters("Depends-On: https://review.example.org/c/a/b/c/+/12345/2\n"))
+        .containsExactly("12345");
+    assertThat(parseFooters("Depends-On: https://review.example.org/c/12345"))
+        .containsExactly("12345");
+    assertThat(parseFooters("Depends-On: https://review.example.org/#/c/12345/"))
+        .containsExactly("12345");
+    assertThat(parseFooters("Depends-On: https://review.example.org/12345"))
+        .containsExactly("12345");
+    assertThat(parseFooters("Depends-On: https://review.example.org/c/project/+/abc")).isEmpty();
+    assertThat(parseFooters("Depends-On: https://review.example.org/c/project 12345")).isEmpty();
+    assertThat(parseFooters("Depends-On: https://review.example.org/c/project/+/12345abc"))
+        .isEmpty();
+    assertThat(parseFooters("Depends-On: https://other.example.org/c/project/+/12345")).isEmpty();
+    assertThat(parseFooters("Depends-On: https://github.com/org/repo/pull/12345")).isEmpty();
+  }
+
+  @Test
+  public void testUrlsOnlyInFooters() {
+    assertThat(PARSER.parse("Subject\n\nDepends-On: https://review.example.org/c/12345\n\nBody"))
+        .isEmpty();
+    assertThat(PARSER.parse("Subject\n\nSee Depends-On: https://review.example.org/c/12345"))
+        .isEmpty();
+  }
+
+  @Test
+  public void testUrlsNotRecognizedWithoutCanonicalWebUrl() {
+    assertThat(
+            new DependsOnParser(null)
+                .parse("Subject\n\nDepends-On: https://review.example.org/c/project/+/12345"))
+        .isEmpty();
+  }
+
+  @Test
+  public void testIsChangeNumber() {
+    assertThat(DependsOnParser.isChangeNumber("12345")).isTrue();
+    assertThat(DependsOnParser.isChangeNumber("I0123456789abcdef")).isFalse();
+  }
+
+  /** Parses a commit message with the given footers. */
+  private static List<String> parseFooters(String footers) {
+    return PARSER.parse("Subject\n\n" + footers);
+  }
+
+  private static List<String> parseWithRegex(String message) {
+    List<String> dependsOn = new ArrayList<>();
+    Matcher matcher = DEPENDS_ON.matcher(message);
+    while (matcher.find()) {
+      dependsOn.add(matcher.group(1));
+    }
+    return dependsOn;
+  }
+}
@@ -0,0 +1,251 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.PatchSet;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.events.RevisionCreatedListener;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.change.RevisionResource;
+import java.util.concurrent.atomic.AtomicReference;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GateOrdersTest {
+  private static final String ROOT = "I0000000000000000000000000000000000000001";
+  private static final String DEP = "Iabcdef01000000000000000000000000000000002";
+  private static final String PLUGIN_NAME = "zuul";
+
+  private DependencyGraphBuilder graphBuilder;
+  private ZuulConfig cfg;
+  private RevisionResource rsrc;
+  private GateOrders gateOrders;
+
+  @Before
+  public void setUp() throws Exception {
+    graphBuilder = mock(DependencyGraphBuilder.class);
+    cfg = mock(ZuulConfig.class);
+    when(cfg.getGraphMaxDepth()).thenReturn(10);
+    when(cfg.getGraphMaxSize()).thenReturn(100);
+
+    rsrc = revision("0123456789012345678901234567890123456789");
+
+    gateOrders = createGateOrders(CacheBuilder.newBuilder().build());
+  }
+
+  @Test
+  public void testDependenciesComeFirst() throws Exception {
+    DependencyGraph graph = new DependencyGraph();
+    graph.addEdge("A", "B");
+    graph.addEdge("B", "C");
+    when(graphBuilder.build(rsrc, 10, 100)).thenReturn(graph);
+
+    GateOrderInfo info = gateOrders.get(rsrc);
+
+    assertThat(info.order).hasSize(3);
+    assertThat(info.order.get(0).changes).containsExactly("C");
+    assertThat(info.order.get(1).changes).containsExactly("B");
+    assertThat(info.order.get(2).changes).containsExactly("A");
+    assertThat(info.order.get(0).bundle).isFalse();
+    assertThat(info.order.get(1).bundle).isFalse();
+    assertThat(info.order.get(2).bundle).isFalse();
+    assertThat(info.truncated).isFalse();
+  }
+
+  @Test
+  public void testCycleIsBundled() throws Exception {
+    DependencyGraph graph = new DependencyGraph();
+    graph.addEdge("A", "B");
+    graph.addEdge("B", "A");
+    graph.addEdge("B", "C");
+    when(graphBuilder.build(rsrc, 10, 100)).thenReturn(graph);
+
+    GateOrderInfo info = gateOrders.get(rsrc);
+
+    assertThat(info.order).hasSize(2);
+    assertThat(info.order.get(0).changes).containsExactly("C");
+    assertThat(info.order.get(0).bundle).isFalse();
+    assertThat(info.order.get(1).changes).containsExactly("A", "B");
+    assertThat(info.order.get(1).bundle).isTrue();
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    DependencyGraph graph = new DependencyGraph();
+    graph.addEdge("A", "B");
+    graph.setTruncated();
+    when(graphBuilder.build(rsrc, 10, 100)).thenReturn(graph);
+
+    assertThat(gateOrders.get(rsrc).truncated).isTrue();
+  }
+
+  @Test
+  public void testOrderIsCached() throws Exception {
+    when(graphBuilder.build(rsrc, 10, 100)).thenReturn(graph());
+
+    gateOrders.get(rsrc);
+    gateOrders.get(rsrc);
+
+    verify(graphBuilder, times(1)).build(rsrc, 10, 100);
+  }
+
+  @Test
+  public void testNewPatchSetOfResolvedChangeInvalidates() throws Exception {
+    when(graphBuilder.build(rsrc, 10, 100)).thenReturn(graph());
+
+    gateOrders.get(rsrc);
+    gateOrders.onRevisionCreated(revisionCreated(2, DEP));
+    gateOrders.get(rsrc);
+
+    verify(graphBuilder, times(2)).build(rsrc, 10, 100);
+  }
+
+  @Test
+  public void testNewChangeMatchingAbbreviationInvalidates() throws Exception {
+    DependencyGraph graph = new DependencyGraph();
+    graph.addEdge(ROOT, "Iabcdef01");
+    graph.addChange(Change.id(1));
+    when(graphBuilder.build(rsrc, 10, 100)).thenReturn(graph);
+
+    gateOrders.get(rsrc);
+    gateOrders.onRevisionCreated(revisionCreated(2, DEP));
+    gateOrders.get(rsrc);
+
+    verify(graphBuilder, times(2)).build(rsrc, 10, 100);
+  }
+
+  @Test
+  public void testReindexOfResolvedChangeInvalidates() throws Exception {
+    when(graphBuilder.build(rsrc, 10, 100)).thenReturn(graph());
+
+    gateOrders.get(rsrc);
+    gateOrders.onChangeIndexed("project", 2);
+    gateOrders.get(rsrc);
+
+    verify(graphBuilder, times(2)).build(rsrc, 10, 100);
+  }
+
+  @Test
+  public void testDeletionOfResolvedChangeInvalidates() throws Exception {
+    when(graphBuilder.build(rsrc, 10, 100)).thenReturn(graph());
+
+    gateOrders.get(rsrc);
+    gateOrders.onChangeDeleted(2);
+    gateOrders.get(rsrc);
+
+    verify(graphBuilder, times(2)).build(rsrc, 10, 100);
+  }
+
+  @Test
+  public void testUnrelatedChangeKeepsOrder() throws Exception {
+    when(graphBuilder.build(rsrc, 10, 100)).thenReturn(graph());
+
+    gateOrders.get(rsrc);
+    gateOrders.onChangeIndexed("project", 3);
+    gateOrders.onRevisionCreated(revisionCreated(3, "Iabcdef02000000000000000000000000000000003"));
+    gateOrders.get(rsrc);
+
+    verify(graphBuilder, times(1)).build(rsrc, 10, 100);
+  }
+
+  @Test
+  public void testInvalidationKeepsOtherOrders() throws Exception {
+    RevisionResource other = revision("1123456789012345678901234567890123456789");
+    DependencyGraph graph = new DependencyGraph();
+    graph.addEdge("I0000000000000000000000000000000000000003", DEP);
+    graph.addChange(Change.id(3));
+    graph.addChange(Change.id(2));
+    when(graphBuilder.build(rsrc, 10, 100)).thenReturn(graph());
+    when(graphBuilder.build(other, 10, 100)).thenReturn(graph);
+
+    gateOrders.get(rsrc);
+    gateOrders.get(other);
+    gateOrders.onChangeIndexed("project", 1);
+    gateOrders.get(rsrc);
+    gateOrders.get(other);
+
+    verify(graphBuilder, times(2)).build(rsrc, 10, 100);
+    verify(graphBuilder, times(1)).build(other, 10, 100);
+  }
+
+  @Test
+  public void testRemovedOrdersAreForgotten() throws Exception {
+    AtomicReference<GateOrders> listener = new AtomicReference<>();
+    Cache<GateOrders.Key, GateOrders.GateOrder> cache =
+        CacheBuilder.newBuilder()
+            .removalListener(
+                (RemovalNotification<GateOrders.Key, GateOrders.GateOrder> n) ->
+                    listener.get().onRemoval(PLUGIN_NAME, GateOrders.CACHE_NAME, n))
+            .build();
+    gateOrders = createGateOrders(cache);
+    listener.set(gateOrders);
+    DependencyGraph graph = new DependencyGraph();
+    graph.addEdge(ROOT, "Iabcdef01");
+    graph.addChange(Change.id(1));
+    when(graphBuilder.build(rsrc, 10, 100)).thenReturn(graph);
+
+    gateOrders.get(rsrc);
+    assertThat(gateOrders.indexedRefs()).isEqualTo(3);
+    cache.invalidateAll();
+
+    assertThat(gateOrders.indexedRefs()).isEqualTo(0);
+    gateOrders.get(rsrc);
+    gateOrders.onRevisionCreated(revisionCreated(2, DEP));
+    gateOrders.get(rsrc);
+    verify(graphBuilder, times(3)).build(rsrc, 10, 100);
+  }
+
+  private GateOrders createGateOrders(Cache<GateOrders.Key, GateOrders.GateOrder> cache) {
+    return new GateOrders(cache, graphBuilder, cfg, PLUGIN_NAME);
+  }
+
+  private static RevisionResource revision(String commitId) {
+    PatchSet patchSet = mock(PatchSet.class);
+    when(patchSet.commitId()).thenReturn(ObjectId.fromString(commitId));
+    RevisionResource rsrc = mock(RevisionResource.class);
+    when(rsrc.getPatchSet()).thenReturn(patchSet);
+    when(rsrc.getUser()).thenReturn(mock(CurrentUser.class));
+    return rsrc;
+  }
+
+  /** Returns a graph in which the root change 1 depends on change 2. */
+  private DependencyGraph graph() {
+    DependencyGraph graph = new DependencyGraph();
+    graph.addEdge(ROOT, DEP);
+    graph.addChange(Change.id(1));
+    graph.addChange(Change.id(2));
+    return graph;
+  }
+
+  private RevisionCreatedListener.Event revisionCreated(int number, String changeId) {
+    ChangeInfo change = new ChangeInfo();
+    change._number = number;
+    change.changeId = changeId;
+    RevisionCreatedListener.Event event = mock(RevisionCreatedListener.Event.class);
+    when(event.getChange()).thenReturn(change);
+    return event;
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.server.change.RevisionResource;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GetCrdGraphTest {
+  private DependencyGraphBuilder graphBuilder;
+  private RevisionResource rsrc;
+  private GetCrdGraph view;
+
+  @Before
+  public void setUp() throws Exception {
+    graphBuilder = mock(DependencyGraphBuilder.class);
+    ZuulConfig cfg = mock(ZuulConfig.class);
+    when(cfg.getGraphMaxDepth()).thenReturn(10);
+    when(cfg.getGraphMaxSize()).thenReturn(100);
+    rsrc = mock(RevisionResource.class);
+    view = new GetCrdGraph(graphBuilder, cfg);
+  }
+
+  @Test
+  public void testDefaultsToConfiguredLimits() throws Exception {
+    DependencyGraph graph = new DependencyGraph();
+    graph.addEdge("A", "B");
+    graph.addEdge("B", "A");
+    when(graphBuilder.build(rsrc, 10, 100)).thenReturn(graph);
+
+    CrdGraphInfo info = view.apply(rsrc).value();
+
+    assertThat(info.cycle).isTrue();
+    assertThat(info.truncated).isFalse();
+  }
+
+  @Test
+  public void testOptionsCannotExceedConfiguredLimits() throws Exception {
+    when(graphBuilder.build(rsrc, 10, 100)).thenReturn(new DependencyGraph());
+    view.setDepth(1000);
+    view.setLimit(1000);
+
+    view.apply(rsrc);
+
+    verify(graphBuilder).build(rsrc, 10, 100);
+  }
+
+  @Test
+  public void testOptionsLowerLimits() throws Exception {
+    when(graphBuilder.build(rsrc, 2, 5)).thenReturn(new DependencyGraph());
+    view.setDepth(2);
+    view.setLimit(5);
+
+    view.apply(rsrc);
+
+    verify(graphBuilder).build(rsrc, 2, 5);
+  }
+
+  @Test
+  public void testNonPositiveDepthIsRejected() {
+    view.setDepth(0);
+
+    assertThrows(BadRequestException.class, () -> view.apply(rsrc));
+  }
+
+  @Test
+  public void testNonPositiveLimitIsRejected() {
+    view.setLimit(-1);
+
+    assertThrows(BadRequestException.class, () -> view.apply(rsrc));
+  }
+}
@@ -14,25 +14,55 @@
 package com.googlesource.gerrit.plugins.zuul;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static java.util.stream.Collectors.toList;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.gerrit.entities.Account;
 import com.google.gerrit.entities.BranchNameKey;
 import com.google.gerrit.entities.Change;
 import com.google.gerrit.entities.PatchSet;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.client.ChangeStatus;
+import com.google.gerrit.extensions.client.ListChangesOption;
 import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.CacheControl;
 import com.google.gerrit.extensions.restapi.Response;
 import com.google.gerrit.extensions.restapi.TopLevelResource;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.metrics.Histogram0;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.AnonymousUser;
+import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.change.RevisionResource;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.restapi.change.ChangesCollection;
 import com.google.gerrit.server.restapi.change.QueryChanges;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.lib.ObjectId;
 import org.junit.Test;
 import org.mockito.invocation.InvocationOnMock;
@@ -41,7 +71,13 @@ import org.mockito.stubbing.Answer;
 public class GetCrdTest {
   private ChangesCollection changes;
   private CommitMessageFetcher commitMessageFetcher;
+  private DependencyIndex dependencyIndex;
+  private ZuulConfig cfg;
+  private List<ChangeData> indexedChanges;
+  private NegativeLookups negativeLookups;
   private RevisionResource rsrc;
+  private ExecutorService executor = MoreExecutors.newDirectExecutorService();
+  private ZuulMetrics metrics = new ZuulMetrics(new DisabledMetricMaker());
 
   @Test
   public void testNoDependencies() throws Exception {
@@ -160,8 +196,508 @@ public class GetCrdTest {
     assertThat(crdInfo.cycle).isTrue();
   }
 
+  @Test
+  public void testNeededByWithoutDependencyIndex() throws Exception {
+    String commitMessage = "subject\nDepends-On: I00000002";
+    List<ChangeInfo> searchResults = new ArrayList<>();
+    searchResults.add(changeInfo("I00000001"));
+    configureMocks(commitMessage, searchResults, false);
+
+    GetCrd getCrd = createGetCrd();
+    Response<CrdInfo> response = getCrd.apply(rsrc);
+
+    assertThat(response.statusCode()).isEqualTo(200);
+    CrdInfo crdInfo = response.value();
+    assertThat(crdInfo.dependsOn).containsExactly("I00000002");
+    assertThat(crdInfo.neededBy).containsExactly("I00000001");
+    assertThat(crdInfo.cycle).isFalse();
+  }
+
+  @Test
+  public void testNeededByWhileDependencyIndexIsIncomplete() throws Exception {
+    String commitMessage = "subject\nDepends-On: I00000002";
+    List<ChangeInfo> searchResults = new ArrayList<>();
+    searchResults.add(changeInfo("I00000001"));
+    configureMocks(commitMessage, searchResults, false);
+    when(cfg.useDependencyIndex()).thenReturn(true);
+
+    GetCrd getCrd = createGetCrd();
+    Response<CrdInfo> response = getCrd.apply(rsrc);
+
+    assertThat(response.statusCode()).isEqualTo(200);
+    assertThat(response.value().neededBy).containsExactly("I00000001");
+    assertThat(getCrd.getETag(rsrc)).isNull();
+  }
+
+  @Test
+  public void testDependsOnTimeout() throws Exception {
+    String commitMessage = "subject\nDepends-On: I00000002";
+    List<ChangeInfo> searchResults = new ArrayList<>();
+    searchResults.add(changeInfo("I00000001"));
+    configureMocks(commitMessage, searchResults);
+    CountDownLatch release = new CountDownLatch(1);
+    when(commitMessageFetcher.fetchAllDependsOn(any(), any()))
+        .thenAnswer(
+            invocation -> {
+              release.await();
+              return ImmutableMap.of();
+            });
+    when(cfg.getTimeout()).thenReturn(10L);
+    executor = Executors.newSingleThreadExecutor();
+
+    try {
+      GetCrd getCrd = createGetCrd();
+      Response<CrdInfo> response = getCrd.apply(rsrc);
+
+      assertThat(response.statusCode()).isEqualTo(200);
+      CrdInfo crdInfo = response.value();
+      assertThat(crdInfo.dependsOn).isEmpty();
+      assertThat(crdInfo.neededBy).containsExactly("I00000001");
+      assertThat(crdInfo.cycle).isFalse();
+      assertThat(crdInfo.incomplete).isTrue();
+      assertThat(response.caching().getType()).isEqualTo(CacheControl.Type.NONE);
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testDependsOnFailure() throws Exception {
+    configureMocks("subject", new ArrayList<>());
+    when(commitMessageFetcher.fetchAllDependsOn(any(), any()))
+        .thenThrow(new RepositoryNotFoundException("projectFoo"));
+    executor = Executors.newSingleThreadExecutor();
+
+    try {
+      GetCrd getCrd = createGetCrd();
+      assertThrows(RepositoryNotFoundException.class, () -> getCrd.apply(rsrc));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    String commitMessage = "subject\nDepends-On: I00000001\nDepends-On: I00000002";
+    List<ChangeInfo> searchResults = new ArrayList<>();
+    searchResults.add(changeInfo("I00000001"));
+    configureMocks(commitMessage, searchResults);
+    MetricMaker metricMaker = mock(MetricMaker.class);
+    DisabledMetricMaker disabled = new DisabledMetricMaker();
+    when(metricMaker.newTimer(anyString(), any()))
+        .thenAnswer(invocation -> disabled.newTimer(invocation.getArgument(0), null));
+    Histogram0 dependsOnCount = mock(Histogram0.class);
+    Histogram0 neededByCount = mock(Histogram0.class);
+    when(metricMaker.newHistogram(eq("crd/depends_on_count"), any())).thenReturn(dependsOnCount);
+    when(metricMaker.newHistogram(eq("crd/needed_by_count"), any())).thenReturn(neededByCount);
+    Counter0 cycles = mock(Counter0.class);
+    when(metricMaker.newCounter(anyString(), any())).thenReturn(mock(Counter0.class));
+    when(metricMaker.newCounter(eq("crd/cycles"), any())).thenReturn(cycles);
+    metrics = new ZuulMetrics(metricMaker);
+
+    GetCrd getCrd = createGetCrd();
+    getCrd.apply(rsrc);
+
+    verify(dependsOnCount).record(2);
+    verify(neededByCount).record(1);
+    verify(cycles).increment();
+  }
+
+  @Test
+  public void testConcurrentRequestsAreCoalesced() throws Exception {
+    configureMocks("subject", new ArrayList<>());
+    when(rsrc.getUser()).thenReturn(mock(AnonymousUser.class));
+    ObjectId commitId = rsrc.getPatchSet().commitId();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    when(commitMessageFetcher.fetchAllDependsOn(any(), any()))
+        .thenAnswer(
+            invocation -> {
+              started.countDown();
+              release.await();
+              return ImmutableMap.of(commitId, ImmutableList.of("I00000002"));
+            });
+    CountDownLatch joined = new CountDownLatch(1);
+    MetricMaker metricMaker = mock(MetricMaker.class);
+    DisabledMetricMaker disabled = new DisabledMetricMaker();
+    when(metricMaker.newTimer(anyString(), any()))
+        .thenAnswer(invocation -> disabled.newTimer(invocation.getArgument(0), null));
+    when(metricMaker.newHistogram(anyString(), any()))
+        .thenAnswer(invocation -> disabled.newHistogram(invocation.getArgument(0), null));
+    when(metricMaker.newCounter(anyString(), any())).thenReturn(mock(Counter0.class));
+    when(metricMaker.newCounter(eq("crd/coalesced"), any()))
+        .thenReturn(
+            new Counter0() {
+              @Override
+              public void incrementBy(long value) {
+                joined.countDown();
+              }
+
+              @Override
+              public void remove() {}
+            });
+    metrics = new ZuulMetrics(metricMaker);
+    GetCrd getCrd = createGetCrd();
+
+    ExecutorService callers = Executors.newFixedThreadPool(2);
+    try {
+      Future<Response<CrdInfo>> first = callers.submit(() -> getCrd.apply(rsrc));
+      started.await();
+      Future<Response<CrdInfo>> second = callers.submit(() -> getCrd.apply(rsrc));
+      joined.await();
+      release.countDown();
+
+      assertThat(first.get().value().dependsOn).containsExactly("I00000002");
+      assertThat(second.get().value()).isSameInstanceAs(first.get().value());
+      verify(commitMessageFetcher, times(1)).fetchAllDependsOn(any(), any());
+    } finally {
+      release.countDown();
+      callers.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testIsCacheable() throws Exception {
+    configureMocks("subject", new ArrayList<>());
+
+    GetCrd getCrd = createGetCrd();
+    Response<CrdInfo> response = getCrd.apply(rsrc);
+
+    assertThat(response.caching().getType()).isEqualTo(CacheControl.Type.PRIVATE);
+    assertThat(response.caching().isMustRevalidate()).isTrue();
+  }
+
+  @Test
+  public void testETagIsStable() throws Exception {
+    configureMocks("subject", ImmutableList.of(changeInfo("I00000001")));
+
+    GetCrd getCrd = createGetCrd();
+
+    assertThat(getCrd.getETag(rsrc)).isNotNull();
+    assertThat(getCrd.getETag(rsrc)).isEqualTo(getCrd.getETag(rsrc));
+  }
+
+  @Test
+  public void testETagChangesWithNeededBy() throws Exception {
+    configureMocks("subject", new ArrayList<>());
+
+    GetCrd getCrd = createGetCrd();
+    String before = getCrd.getETag(rsrc);
+    dependencyIndex.update(
+        Change.id(2), Change.key("I00000001"), ImmutableList.of(rsrc.getChange().getKey().get()));
+
+    assertThat(getCrd.getETag(rsrc)).isNotEqualTo(before);
+  }
+
+  @Test
+  public void testETagDependsOnUser() throws Exception {
+    configureMocks("subject", new ArrayList<>());
+
+    GetCrd getCrd = createGetCrd();
+    String anonymous = getCrd.getETag(rsrc);
+    CurrentUser user = mock(CurrentUser.class);
+    when(user.isIdentifiedUser()).thenReturn(true);
+    when(user.getAccountId()).thenReturn(Account.id(1000000));
+    when(rsrc.getUser()).thenReturn(user);
+
+    assertThat(getCrd.getETag(rsrc)).isNotEqualTo(anonymous);
+  }
+
+  @Test
+  public void testNoETagWithoutDependencyIndex() throws Exception {
+    configureMocks("subject", new ArrayList<>(), false);
+
+    GetCrd getCrd = createGetCrd();
+
+    assertThat(getCrd.getETag(rsrc)).isNull();
+  }
+
+  @Test
+  public void testBatch() throws Exception {
+    String commitMessage = "subject\nDepends-On: I00000002";
+    List<ChangeInfo> searchResults = new ArrayList<>();
+    searchResults.add(changeInfo("I00000001"));
+    configureMocks(commitMessage, searchResults);
+
+    GetCrd getCrd = createGetCrd();
+    List<CrdInfo> crdInfos = getCrd.apply(ImmutableList.of(rsrc, rsrc));
+
+    assertThat(crdInfos).hasSize(2);
+    for (CrdInfo crdInfo : crdInfos) {
+      assertThat(crdInfo.dependsOn).containsExactly("I00000002");
+      assertThat(crdInfo.neededBy).containsExactly("I00000001");
+      assertThat(crdInfo.cycle).isFalse();
+    }
+    verify(commitMessageFetcher, times(1))
+        .fetchAllDependsOn(eq(Project.nameKey("projectFoo")), any());
+  }
+
+  @Test
+  public void testResolve() throws Exception {
+    String commitMessage = "subject\nDepends-On: I00000002\nDepends-On: I00000004";
+    ChangeInfo neededBy = changeInfo("I00000001");
+    configureMocks(commitMessage, ImmutableList.of(neededBy));
+    ChangeInfo stable = changeInfo("I00000002", 12, "stable");
+    ChangeInfo master = changeInfo("I00000002", 10, "master");
+    VisibleChanges visibleChanges =
+        new VisibleChanges(changes) {
+          @Override
+          public List<ChangeInfo> query(String q, ListChangesOption... options)
+              throws BadRequestException, AuthException, PermissionBackendException {
+            assertThat(options).asList().containsExactly(ListChangesOption.CURRENT_REVISION);
+            if (q.equals("change:I00000002 OR change:I00000004")) {
+              return ImmutableList.of(stable, master);
+            }
+            return super.query(q, options);
+          }
+        };
+
+    GetCrd getCrd = createGetCrd(visibleChanges);
+    getCrd.setResolve(true);
+    CrdInfo crdInfo = getCrd.apply(rsrc).value();
+
+    assertThat(crdInfo.dependsOn).containsExactly("I00000002", "I00000004");
+    assertThat(crdInfo.neededBy).containsExactly("I00000001");
+    assertThat(crdInfo.changes.keySet()).containsExactly("I00000002", "I00000001").inOrder();
+    List<CrdChangeInfo> resolved = crdInfo.changes.get("I00000002");
+    assertThat(resolved.stream().map(c -> c._number).collect(toList()))
+        .containsExactly(10, 12)
+        .inOrder();
+    assertThat(resolved.get(0).branch).isEqualTo("master");
+    assertThat(resolved.get(0).project).isEqualTo("projectBaz");
+    assertThat(resolved.get(0).status).isEqualTo(ChangeStatus.NEW);
+    assertThat(resolved.get(0).currentRevision).isEqualTo(master.currentRevision);
+    assertThat(crdInfo.changes.get("I00000001").get(0)._number).isEqualTo(neededBy._number);
+  }
+
+  @Test
+  public void testNotResolvedByDefault() throws Exception {
+    configureMocks("subject\nDepends-On: I00000002", new ArrayList<>());
+
+    GetCrd getCrd = createGetCrd();
+    CrdInfo crdInfo = getCrd.apply(rsrc).value();
+
+    assertThat(crdInfo.changes).isNull();
+  }
+
+  @Test
+  public void testETagChangesWithDependsOn() throws Exception {
+    String dependsOn = "I0000000000000000000000000000000000000002";
+    configureMocks("subject\nDepends-On: " + dependsOn, new ArrayList<>());
+
+    GetCrd getCrd = createGetCrd();
+    String before = getCrd.getETag(rsrc);
+    dependencyIndex.update(Change.id(3), Change.key(dependsOn), ImmutableList.of());
+
+    assertThat(getCrd.getETag(rsrc)).isNotEqualTo(before);
+  }
+
+  @Test
+  public void testETagDoesNotDependOnResolve() throws Exception {
+    String dependsOn = "I0000000000000000000000000000000000000002";
+    configureMocks("subject\nDepends-On: " + dependsOn, new ArrayList<>());
+
+    String unresolved = createGetCrd().getETag(rsrc);
+    GetCrd getCrd = createGetCrd();
+    getCrd.setResolve(true);
+
+    assertThat(unresolved).isNotNull();
+    assertThat(getCrd.getETag(rsrc)).isEqualTo(unresolved);
+  }
+
+  @Test
+  public void testETagDoesNotDependOnOptions() throws Exception {
+    String dependsOn = "I0000000000000000000000000000000000000002";
+    configureMocks(
+        "subject\nDepends-On: " + dependsOn,
+        ImmutableList.of(changeInfo("I00000001"), changeInfo("I00000003")));
+
+    String fresh = createGetCrd().getETag(rsrc);
+    GetCrd getCrd = createGetCrd();
+    getCrd.setResolve(true);
+    getCrd.setStart(1);
+    getCrd.setLimit(1);
+
+    assertThat(fresh).isNotNull();
+    assertThat(getCrd.getETag(rsrc)).isEqualTo(fresh);
+  }
+
+  @Test
+  public void testNoETagForAbbreviatedDependsOn() throws Exception {
+    configureMocks("subject\nDepends-On: I00000002", new ArrayList<>());
+
+    GetCrd getCrd = createGetCrd();
+
+    assertThat(getCrd.getETag(rsrc)).isNull();
+  }
+
+  @Test
+  public void testNeededByPages() throws Exception {
+    List<ChangeInfo> searchResults = new ArrayList<>();
+    searchResults.add(changeInfo("I00000001"));
+    searchResults.add(changeInfo("I00000003"));
+    searchResults.add(changeInfo("I00000005"));
+    configureMocks("subject", searchResults);
+
+    GetCrd getCrd = createGetCrd();
+    getCrd.setLimit(2);
+    CrdInfo first = getCrd.apply(rsrc).value();
+    getCrd.setStart(2);
+    CrdInfo second = getCrd.apply(rsrc).value();
+
+    assertThat(first.neededBy).containsExactly("I00000005", "I00000003").inOrder();
+    assertThat(first.moreNeededBy).isTrue();
+    assertThat(second.neededBy).containsExactly("I00000001");
+    assertThat(second.moreNeededBy).isNull();
+  }
+
+  @Test
+  public void testNeededByLimitIsCapped() throws Exception {
+    List<ChangeInfo> searchResults = new ArrayList<>();
+    searchResults.add(changeInfo("I00000001"));
+    searchResults.add(changeInfo("I00000003"));
+    configureMocks("subject", searchResults);
+    when(cfg.getNeededByLimit()).thenReturn(1);
+
+    GetCrd getCrd = createGetCrd();
+    getCrd.setLimit(5);
+    CrdInfo crdInfo = getCrd.apply(rsrc).value();
+
+    assertThat(crdInfo.neededBy).containsExactly("I00000003");
+    assertThat(crdInfo.moreNeededBy).isTrue();
+  }
+
+  @Test
+  public void testCycleOnOtherPage() throws Exception {
+    ChangeInfo other = changeInfo("I00000001");
+    List<ChangeInfo> searchResults = new ArrayList<>();
+    searchResults.add(other);
+    searchResults.add(changeInfo("I00000003"));
+    configureMocks("subject\nDepends-On: I00000001", searchResults);
+    VisibleChanges visibleChanges =
+        new VisibleChanges(changes) {
+          @Override
+          public List<ChangeInfo> query(String q, ListChangesOption... options)
+              throws BadRequestException, AuthException, PermissionBackendException {
+            if (q.equals("change:" + other._number)) {
+              return ImmutableList.of(other);
+            }
+            return super.query(q, options);
+          }
+        };
+
+    GetCrd getCrd = createGetCrd(visibleChanges);
+    getCrd.setLimit(1);
+    CrdInfo crdInfo = getCrd.apply(rsrc).value();
+
+    assertThat(crdInfo.neededBy).containsExactly("I00000003");
+    assertThat(crdInfo.cycle).isTrue();
+  }
+
+  @Test
+  public void testDependsOnChangeNumbers() throws Exception {
+    configureMocks("subject\n\nDepends-On: 12\nDepends-On: 13", new ArrayList<>());
+    VisibleChanges visibleChanges =
+        new VisibleChanges(changes) {
+          @Override
+          public List<ChangeInfo> query(String q, ListChangesOption... options)
+              throws BadRequestException, AuthException, PermissionBackendException {
+            if (q.equals("change:12 OR change:13")) {
+              return ImmutableList.of(changeInfo("I00000002", 12, "master"));
+            }
+            return super.query(q, options);
+          }
+        };
+
+    GetCrd getCrd = createGetCrd(visibleChanges);
+    CrdInfo crdInfo = getCrd.apply(rsrc).value();
+
+    assertThat(crdInfo.dependsOn).containsExactly("I00000002", "13").inOrder();
+  }
+
+  @Test
+  public void testNeededByChangeNumber() throws Exception {
+    configureMocks("subject", new ArrayList<>());
+    ChangeInfo other = changeInfo("I00000007");
+    dependencyIndex.update(
+        Change.id(other._number), Change.key(other.changeId), ImmutableList.of("4711"));
+    VisibleChanges visibleChanges =
+        new VisibleChanges(changes) {
+          @Override
+          public List<ChangeInfo> query(String q, ListChangesOption... options)
+              throws BadRequestException, AuthException, PermissionBackendException {
+            if (q.equals("change:" + other._number)) {
+              return ImmutableList.of(other);
+            }
+            return super.query(q, options);
+          }
+        };
+
+    GetCrd getCrd = createGetCrd(visibleChanges);
+    CrdInfo crdInfo = getCrd.apply(rsrc).value();
+
+    assertThat(crdInfo.neededBy).containsExactly("I00000007");
+  }
+
+  @Test
+  public void testMissingChangeIsNotResolvedAgain() throws Exception {
+    configureMocks("subject\nDepends-On: I00000002\nDepends-On: I00000004", new ArrayList<>());
+    ChangeData existing = mock(ChangeData.class);
+    when(existing.getId()).thenReturn(Change.id(2));
+    when(existing.change())
+        .thenReturn(
+            new Change(
+                Change.key("I0000000200000000000000000000000000000000"),
+                Change.id(2),
+                Account.id(23),
+                BranchNameKey.create(Project.nameKey("projectFoo"), "branchBar"),
+                new Timestamp(0)));
+    indexedChanges.add(existing);
+    List<Collection<String>> lookups = new ArrayList<>();
+    VisibleChanges visibleChanges =
+        new VisibleChanges(changes) {
+          @Override
+          public List<ChangeInfo> byChangeIds(
+              Collection<String> changeIds, ListChangesOption... options) {
+            lookups.add(ImmutableList.copyOf(changeIds));
+            return ImmutableList.of();
+          }
+        };
+
+    GetCrd getCrd = createGetCrd(visibleChanges);
+    getCrd.setResolve(true);
+    getCrd.apply(rsrc);
+    getCrd.apply(rsrc);
+    negativeLookups.onChangeCreated(Change.id(5), Change.key("I0000000400000000"));
+    getCrd.apply(rsrc);
+
+    assertThat(lookups)
+        .containsExactly(
+            ImmutableList.of("I00000002", "I00000004"),
+            ImmutableList.of("I00000002"),
+            ImmutableList.of("I00000002", "I00000004"))
+        .inOrder();
+  }
+
+  @Test
+  public void testNegativeStart() throws Exception {
+    configureMocks("subject", new ArrayList<>());
+
+    GetCrd getCrd = createGetCrd();
+    getCrd.setStart(-1);
+
+    assertThrows(BadRequestException.class, () -> getCrd.apply(rsrc));
+  }
+
   public void configureMocks(String commitMessage, final List<ChangeInfo> searchResult)
       throws Exception {
+    configureMocks(commitMessage, searchResult, true);
+  }
+
+  public void configureMocks(
+      String commitMessage, final List<ChangeInfo> searchResult, boolean useDependencyIndex)
+      throws Exception {
     String commitId = "0123456789012345678901234567890123456789";
 
     Project.NameKey projectNameKey = Project.nameKey("projectFoo");
@@ -180,6 +716,37 @@ public class GetCrdTest {
     rsrc = mock(RevisionResource.class);
     when(rsrc.getChange()).thenReturn(change);
     when(rsrc.getPatchSet()).thenReturn(patchSet);
+    when(rsrc.getUser()).thenReturn(mock(CurrentUser.class));
+
+    dependencyIndex = new DependencyIndex();
+    if (useDependencyIndex) {
+      dependencyIndex.setComplete();
+    }
+    List<String> neededByQuery = new ArrayList<>();
+    for (ChangeInfo other : searchResult) {
+      dependencyIndex.update(
+          Change.id(other._number),
+          Change.key(other.changeId),
+          ImmutableList.of(change.getKey().get()));
+      neededByQuery.add(0, "change:" + other._number);
+    }
+    String expectedQuery =
+        useDependencyIndex
+            ? String.join(" OR ", neededByQuery)
+            : "message:I0123456789 -change:I0123456789";
+
+    indexedChanges = new ArrayList<>();
+    negativeLookups =
+        new NegativeLookups(
+            CacheBuilder.newBuilder().build(), CacheBuilder.newBuilder().build(), () -> null) {
+          @Override
+          List<ChangeData> query(List<String> refs) {
+            return indexedChanges;
+          }
+        };
+
+    cfg = mock(ZuulConfig.class);
+    when(cfg.useDependencyIndex()).thenReturn(useDependencyIndex);
 
     QueryChanges queryChanges = mock(QueryChanges.class);
     final AtomicBoolean addedQuery = new AtomicBoolean(false);
@@ -192,7 +759,7 @@ public class GetCrdTest {
               }
             })
         .when(queryChanges)
-        .addQuery("message:I0123456789 -change:I0123456789");
+        .addQuery(expectedQuery);
     when(queryChanges.apply(TopLevelResource.INSTANCE))
         .thenAnswer(
             new Answer<Response<List<ChangeInfo>>>() {
@@ -208,16 +775,45 @@ public class GetCrdTest {
     when(changes.list()).thenReturn(queryChanges);
 
     commitMessageFetcher = mock(CommitMessageFetcher.class);
-    when(commitMessageFetcher.fetch(projectNameKey, commitId)).thenReturn(commitMessage);
+    when(commitMessageFetcher.fetchAllDependsOn(eq(projectNameKey), any()))
+        .thenReturn(
+            ImmutableMap.of(
+                ObjectId.fromString(commitId), new DependsOnParser(null).parse(commitMessage)));
+    when(commitMessageFetcher.fetchDependsOn(eq(projectNameKey), any()))
+        .thenReturn(new DependsOnParser(null).parse(commitMessage));
   }
 
   private ChangeInfo changeInfo(String changeId) {
     ChangeInfo changeInfo = new ChangeInfo();
     changeInfo.changeId = changeId;
+    changeInfo._number = Integer.parseInt(changeId.substring(1), 16) + 1;
+    return changeInfo;
+  }
+
+  private ChangeInfo changeInfo(String changeId, int number, String branch) {
+    ChangeInfo changeInfo = new ChangeInfo();
+    changeInfo.changeId = changeId;
+    changeInfo._number = number;
+    changeInfo.project = "projectBaz";
+    changeInfo.branch = branch;
+    changeInfo.status = ChangeStatus.NEW;
+    changeInfo.currentRevision = ObjectId.zeroId().name();
     return changeInfo;
   }
 
   private GetCrd createGetCrd() {
-    return new GetCrd(changes, commitMessageFetcher);
+    return createGetCrd(new VisibleChanges(changes));
+  }
+
+  private GetCrd createGetCrd(VisibleChanges visibleChanges) {
+    return new GetCrd(
+        visibleChanges,
+        commitMessageFetcher,
+        dependencyIndex,
+        cfg,
+        executor,
+        metrics,
+        new InFlightCrdLookups(),
+        negativeLookups);
   }
 }
@@ -0,0 +1,62 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public class IntIntMapTest {
+  @Test
+  public void testPutGetRemove() {
+    IntIntMap map = new IntIntMap();
+    map.put(1, 10);
+    map.put(-1, 20);
+    map.put(1, 30);
+
+    assertThat(map.get(1)).isEqualTo(30);
+    assertThat(map.get(-1)).isEqualTo(20);
+    assertThat(map.get(2)).isEqualTo(-1);
+    assertThat(map.get(Integer.MIN_VALUE)).isEqualTo(-1);
+    assertThat(map.remove(1)).isEqualTo(30);
+    assertThat(map.remove(1)).isEqualTo(-1);
+    assertThat(map.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void testRandomOperations() {
+    IntIntMap map = new IntIntMap();
+    Map<Integer, Integer> expected = new HashMap<>();
+    Random random = new Random(0);
+    for (int i = 0; i < 50000; i++) {
+      int key = random.nextInt(5000) * 1024;
+      if (random.nextInt(3) == 0) {
+        assertThat(map.remove(key)).isEqualTo(expected.getOrDefault(key, -1));
+        expected.remove(key);
+      } else {
+        map.put(key, i);
+        expected.put(key, i);
+      }
+    }
+
+    assertThat(map.size()).isEqualTo(expected.size());
+    for (int key = 0; key < 5000 * 1024; key += 1024) {
+      assertThat(map.get(key)).isEqualTo(expected.getOrDefault(key, -1));
+    }
+  }
+}
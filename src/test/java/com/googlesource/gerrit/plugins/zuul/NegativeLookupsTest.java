@@ -0,0 +1,126 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.zuul;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.NewProjectCreatedListener;
+import com.google.gerrit.server.query.change.ChangeData;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NegativeLookupsTest {
+  private final List<ChangeData> indexed = new ArrayList<>();
+  private final List<List<String>> queries = new ArrayList<>();
+  private NegativeLookups negativeLookups;
+
+  @Before
+  public void setUp() {
+    negativeLookups =
+        new NegativeLookups(
+            CacheBuilder.newBuilder().build(), CacheBuilder.newBuilder().build(), () -> null) {
+          @Override
+          List<ChangeData> query(List<String> refs) {
+            queries.add(refs);
+            return indexed;
+          }
+        };
+  }
+
+  @Test
+  public void testOnlyMissingChangesAreRecorded() {
+    indexed.add(changeData(3, "I0000000100000000000000000000000000000000"));
+    indexed.add(changeData(5, "I0000000600000000000000000000000000000000"));
+
+    negativeLookups.checkMissingChanges(
+        ImmutableList.of("I00000001", "I00000002", "I000000060", "3", "4"));
+
+    assertThat(negativeLookups.isMissingChange("I00000001")).isFalse();
+    assertThat(negativeLookups.isMissingChange("I00000002")).isTrue();
+    assertThat(negativeLookups.isMissingChange("I000000060")).isFalse();
+    assertThat(negativeLookups.isMissingChange("3")).isFalse();
+    assertThat(negativeLookups.isMissingChange("4")).isTrue();
+  }
+
+  @Test
+  public void testReferencesAreCheckedInOneQuery() {
+    negativeLookups.checkMissingChanges(ImmutableList.of("I00000001", "I00000002", "3", "3"));
+
+    assertThat(queries).containsExactly(ImmutableList.of("I00000001", "I00000002", "3"));
+  }
+
+  @Test
+  public void testNothingToCheck() {
+    negativeLookups.checkMissingChanges(ImmutableList.of());
+
+    assertThat(queries).isEmpty();
+  }
+
+  @Test
+  public void testCreatedChangeIsNoLongerMissing() {
+    negativeLookups.putMissingChange("I00000001");
+    negativeLookups.putMissingChange("I0000000100000000");
+    negativeLookups.putMissingChange("I00000002");
+    negativeLookups.putMissingChange("5");
+
+    negativeLookups.onChangeCreated(Change.id(5), Change.key("I0000000100000000"));
+
+    assertThat(negativeLookups.isMissingChange("I00000001")).isFalse();
+    assertThat(negativeLookups.isMissingChange("I0000000100000000")).isFalse();
+    assertThat(negativeLookups.isMissingChange("I00000002")).isTrue();
+    assertThat(negativeLookups.isMissingChange("5")).isFalse();
+  }
+
+  @Test
+  public void testCreatedProjectIsNoLongerMissing() throws Exception {
+    Project.NameKey project = Project.nameKey("foo");
+    negativeLookups.checkProject(project);
+    negativeLookups.putMissingProject(project);
+    assertThrows(RepositoryNotFoundException.class, () -> negativeLookups.checkProject(project));
+
+    NewProjectCreatedListener.Event event = mock(NewProjectCreatedListener.Event.class);
+    when(event.getProjectName()).thenReturn(project.get());
+    negativeLookups.onNewProjectCreated(event);
+
+    negativeLookups.checkProject(project);
+  }
+
+  private static ChangeData changeData(int number, String changeId) {
+    ChangeData cd = mock(ChangeData.class);
+    when(cd.getId()).thenReturn(Change.id(number));
+    when(cd.change())
+        .thenReturn(
+            new Change(
+                Change.key(changeId),
+                Change.id(number),
+                Account.id(23),
+                BranchNameKey.create(Project.nameKey("project"), "master"),
+                new Timestamp(0)));
+    return cd;
+  }
+}